@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved.
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: Redistributions of source code
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of
+ * is contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * ClassFileDependencies.java
+ */
+
+package com.sun.script.java;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reads the names of classes referenced by a .class file from its
+ * constant pool. Both class entries and type descriptors are scanned, so
+ * types that only appear in signatures are found too. Constants inlined
+ * by javac (static final primitives and Strings) leave no trace in the
+ * constant pool and are not reported.
+ */
+final class ClassFileDependencies {
+    // constant pool tags
+    private static final int UTF8 = 1;
+    private static final int INTEGER = 3;
+    private static final int FLOAT = 4;
+    private static final int LONG = 5;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int STRING = 8;
+    private static final int FIELD_REF = 9;
+    private static final int METHOD_REF = 10;
+    private static final int INTERFACE_METHOD_REF = 11;
+    private static final int NAME_AND_TYPE = 12;
+    private static final int METHOD_HANDLE = 15;
+    private static final int METHOD_TYPE = 16;
+    private static final int DYNAMIC = 17;
+    private static final int INVOKE_DYNAMIC = 18;
+    private static final int MODULE = 19;
+    private static final int PACKAGE = 20;
+
+    private ClassFileDependencies() {
+    }
+
+    /**
+     * Returns binary names of classes referenced by the given class bytes.
+     */
+    static Set<String> referencedClasses(final byte[] classBytes) throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(classBytes));
+        if (in.readInt() != 0xCAFEBABE) {
+            throw new IOException("not a class file");
+        }
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+
+        final int count = in.readUnsignedShort();
+        final String[] utf8 = new String[count];
+        final int[] classIndexes = new int[count];
+        int numClasses = 0;
+        for (int i = 1; i < count; i++) {
+            final int tag = in.readUnsignedByte();
+            switch (tag) {
+            case UTF8:
+                utf8[i] = in.readUTF();
+                break;
+            case CLASS:
+                classIndexes[numClasses++] = in.readUnsignedShort();
+                break;
+            case STRING:
+            case METHOD_TYPE:
+            case MODULE:
+            case PACKAGE:
+                in.readUnsignedShort();
+                break;
+            case METHOD_HANDLE:
+                in.readUnsignedByte();
+                in.readUnsignedShort();
+                break;
+            case INTEGER:
+            case FLOAT:
+            case FIELD_REF:
+            case METHOD_REF:
+            case INTERFACE_METHOD_REF:
+            case NAME_AND_TYPE:
+            case DYNAMIC:
+            case INVOKE_DYNAMIC:
+                in.readInt();
+                break;
+            case LONG:
+            case DOUBLE:
+                in.readLong();
+                // 8-byte constants take two slots
+                i++;
+                break;
+            default:
+                throw new IOException("bad constant pool tag " + tag);
+            }
+        }
+
+        final Set<String> classes = new HashSet<String>();
+        for (int i = 0; i < numClasses; i++) {
+            final String name = utf8[classIndexes[i]];
+            if (name.startsWith("[")) {
+                addDescriptorClasses(name, classes);
+            } else {
+                classes.add(name.replace('/', '.'));
+            }
+        }
+        for (final String str : utf8) {
+            if (str != null && str.indexOf(';') != -1) {
+                addDescriptorClasses(str, classes);
+            }
+        }
+        return classes;
+    }
+
+    // add classes named by "Lpkg/Name;" in a descriptor or signature
+    private static void addDescriptorClasses(final String descriptor,
+                    final Set<String> classes) {
+        int start = descriptor.indexOf('L');
+        while (start != -1) {
+            int end = start + 1;
+            while (end < descriptor.length()) {
+                final char ch = descriptor.charAt(end);
+                if (ch == ';' || ch == '<') {
+                    break;
+                }
+                end++;
+            }
+            if (end < descriptor.length() && end > start + 1) {
+                classes.add(descriptor.substring(start + 1, end).replace('/', '.'));
+            }
+            start = descriptor.indexOf('L', end);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved.
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: Redistributions of source code
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of
+ * is contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * CompilationException.java
+ */
+
+package com.sun.script.java;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.script.ScriptException;
+import javax.tools.Diagnostic;
+
+/**
+ * Thrown when a script does not compile. File name, line number and
+ * column number are those of the first error; all diagnostics javac
+ * reported are available from {@link #getDiagnostics()}.
+ */
+public class CompilationException extends ScriptException {
+    private static final long serialVersionUID = 1L;
+
+    private final transient List<ScriptDiagnostic> diagnostics;
+    private final transient ScriptDiagnostic error;
+
+    CompilationException(final List<ScriptDiagnostic> diagnostics) {
+        this(diagnostics, firstError(diagnostics));
+    }
+
+    private CompilationException(final List<ScriptDiagnostic> diagnostics,
+                    final ScriptDiagnostic error) {
+        super("compilation failed",
+              error == null ? null : error.getSourceName(),
+              error == null ? -1 : toInt(error.getLineNumber()),
+              error == null ? -1 : toInt(error.getColumnNumber()));
+        this.diagnostics = Collections.unmodifiableList(diagnostics);
+        this.error = error;
+    }
+
+    /**
+     * Returns the message of ScriptException followed by the message of
+     * the first error. The latter is formatted on first use.
+     */
+    @Override
+    public String getMessage() {
+        final String message = super.getMessage();
+        return error == null ? message : message + ": " + error.getMessage();
+    }
+
+    /**
+     * Returns errors, warnings and notes reported by javac, in the order
+     * reported.
+     */
+    public List<ScriptDiagnostic> getDiagnostics() {
+        return diagnostics == null ?
+                Collections.<ScriptDiagnostic>emptyList() : diagnostics;
+    }
+
+    /**
+     * Detaches all diagnostics from javac, see
+     * {@link ScriptDiagnostic#detach()}.
+     *
+     * @return this exception
+     */
+    public CompilationException detach() {
+        for (final ScriptDiagnostic diagnostic : getDiagnostics()) {
+            diagnostic.detach();
+        }
+        return this;
+    }
+
+    private static ScriptDiagnostic firstError(final List<ScriptDiagnostic> diagnostics) {
+        for (final ScriptDiagnostic diagnostic : diagnostics) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                return diagnostic;
+            }
+        }
+        return null;
+    }
+
+    private static int toInt(final long pos) {
+        return pos == Diagnostic.NOPOS || pos > Integer.MAX_VALUE ? -1 : (int) pos;
+    }
+}
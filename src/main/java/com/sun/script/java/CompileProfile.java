@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved.
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: Redistributions of source code
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of
+ * is contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * CompileProfile.java
+ */
+
+package com.sun.script.java;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Named set of javac options. A profile is selected with the "profile"
+ * variable of the ScriptContext, or with system property
+ * "com.sun.script.java.profile". The option lists are built once, when
+ * the profile is defined.
+ *
+ * Two profiles are predefined: "default", with the lint checks the engine
+ * always used, and "production", which turns lint, annotation processing
+ * and implicit class generation off.
+ */
+public final class CompileProfile {
+    private static final ConcurrentMap<String, CompileProfile> profiles =
+        new ConcurrentHashMap<String, CompileProfile>();
+
+    private static final String IMPLICIT_NONE = "-implicit:none";
+
+    /** Options the engine has always used: all lint checks. */
+    public static final CompileProfile DEFAULT = define("default",
+            "-Xlint:all", "-g:none", "-deprecation");
+
+    /** No lint, no annotation processors, no implicit class generation. */
+    public static final CompileProfile PRODUCTION = define("production",
+            "-g:none", "-Xlint:none", "-nowarn", "-proc:none", IMPLICIT_NONE);
+
+    private final String name;
+    private final List<String> options;
+    // options used with -sourcepath
+    private final List<String> sourcePathOptions;
+
+    CompileProfile(final String name, final List<String> options) {
+        this.name = name;
+        this.options = Collections.unmodifiableList(new ArrayList<String>(options));
+
+        // classes of sourcepath files are loaded from memory, so javac must
+        // generate them even if the profile asks for -implicit:none
+        final List<String> withSourcePath = new ArrayList<String>(options);
+        withSourcePath.remove(IMPLICIT_NONE);
+        this.sourcePathOptions = Collections.unmodifiableList(withSourcePath);
+    }
+
+    /**
+     * Defines (or redefines) a named profile.
+     *
+     * @param name profile name
+     * @param options javac options, without -sourcepath and -classpath
+     */
+    public static CompileProfile define(final String name, final String... options) {
+        final CompileProfile profile = new CompileProfile(name, Arrays.asList(options));
+        profiles.put(name, profile);
+        return profile;
+    }
+
+    /**
+     * Returns the profile with given name, or null if there is none.
+     */
+    public static CompileProfile forName(final String name) {
+        return profiles.get(name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getOptions() {
+        return options;
+    }
+
+    List<String> getOptions(final boolean hasSourcePath) {
+        return hasSourcePath ? sourcePathOptions : options;
+    }
+
+    @Override
+    public String toString() {
+        return name + options;
+    }
+}
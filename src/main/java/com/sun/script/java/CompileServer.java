@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved.
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: Redistributions of source code
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of
+ * is contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * CompileServer.java
+ */
+
+package com.sun.script.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+/**
+ * Long-running local process that keeps a warm Java compiler and a shared
+ * bytecode cache for many client JVMs on the same host.
+ *
+ * Clients find the server through the "com.sun.script.java.compileServer"
+ * system property, which names the Unix domain socket. When the property is
+ * not set or the server does not answer, {@link JavaCompiilerHelper} compiles
+ * in-process as before.
+ *
+ * The socket is accessible to the user running the server only, and
+ * connections from other users are refused. Since client requests still
+ * run javac inside this process, annotation processing is always off, and
+ * requests with javac options other than those of {@link #ALLOWED_OPTIONS}
+ * are rejected; clients then compile in-process.
+ *
+ * Results are cached by source, options and the size and modification time
+ * of classpath jars. Requests with a sourcepath or a classpath directory
+ * are compiled every time. Clients running an older Java version get class
+ * files for it through --release; newer clients are rejected.
+ *
+ * <pre>
+ *   java -cp java-engine.jar com.sun.script.java.CompileServer /tmp/javac.sock [cacheSize]
+ * </pre>
+ */
+public final class CompileServer {
+    /** Default number of compiled sources kept in the bytecode cache. */
+    private static final int DEFAULT_CACHE_SIZE = 256;
+
+    /**
+     * javac options accepted from clients, matched by prefix. None of them
+     * loads code into the server.
+     */
+    static final List<String> ALLOWED_OPTIONS = Collections.unmodifiableList(Arrays.asList(
+        "-g", "-Xlint", "-nowarn", "-deprecation", "-Werror", "-parameters",
+        "-proc:none", "-implicit:"));
+
+    /** javac options accepted from clients that take a value. */
+    static final List<String> ALLOWED_OPTIONS_WITH_VALUE = Collections.unmodifiableList(
+        Arrays.asList("-encoding", "-source", "-target", "--release"));
+
+    private final Path socket;
+    private final JavaCompiilerHelper compiler;
+    private final Map<String, Map<String, byte[]>> cache;
+    private final ExecutorService workers;
+
+    public CompileServer(final Path socket, final int cacheSize) {
+        this.socket = socket;
+        // always compile in-process here, never forward to ourselves
+        this.compiler = new JavaCompiilerHelper(null);
+        this.cache = new LinkedHashMap<String, Map<String, byte[]>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<String, Map<String, byte[]>> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        this.workers = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "java-engine-compile-server");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Accept and serve compile requests until the thread is interrupted
+     * or the socket is closed.
+     */
+    public void serve() throws IOException {
+        // remove stale socket left over by a previous server
+        Files.deleteIfExists(socket);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            restrictToOwner(socket);
+            while (! Thread.currentThread().isInterrupted()) {
+                final SocketChannel channel = server.accept();
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(channel);
+                    }
+                });
+            }
+        } finally {
+            workers.shutdownNow();
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    private void handle(final SocketChannel channel) {
+        try (SocketChannel c = channel) {
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(c)));
+            if (in.readInt() != CompileServerClient.MAGIC) {
+                return;
+            }
+            final int clientVersion = in.readInt();
+            final String fileName = CompileServerClient.readString(in);
+            final String source = CompileServerClient.readString(in);
+            final String sourcePath = CompileServerClient.readString(in);
+            final String classPath = CompileServerClient.readString(in);
+            final List<String> options = new ArrayList<String>();
+            final int numOptions = in.readInt();
+            for (int i = 0; i < numOptions; i++) {
+                options.add(CompileServerClient.readString(in));
+            }
+
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(c)));
+
+            String rejected = checkRequest(c, options);
+            if (rejected == null) {
+                rejected = targetVersion(clientVersion, options);
+            }
+            if (rejected != null) {
+                out.writeInt(CompileServerClient.STATUS_REJECTED);
+                CompileServerClient.writeString(out, rejected);
+                out.flush();
+                return;
+            }
+            // processors found on a client's classpath would run in here
+            options.add("-proc:none");
+            final CompileProfile profile = new CompileProfile("client", options);
+
+            // null if the result depends on files that may change unseen
+            final String inputs = inputStamps(sourcePath, classPath);
+            final String key = inputs == null ? null :
+                cacheKey(fileName, source, classPath, inputs, options.toString());
+            Map<String, byte[]> classBytes = null;
+            if (key != null) {
+                synchronized (cache) {
+                    classBytes = cache.get(key);
+                }
+            }
+            if (classBytes == null) {
+                try {
+                    classBytes = compiler.compile(fileName, source, Writer.nullWriter(),
+                                                  sourcePath, classPath, profile, false);
+                } catch (final CompilationException exp) {
+                    out.writeInt(CompileServerClient.STATUS_FAILED);
+                    CompileServerClient.writeDiagnostics(out, exp.getDiagnostics());
+                    out.flush();
+                    return;
+                }
+                if (key != null) {
+                    synchronized (cache) {
+                        cache.put(key, classBytes);
+                    }
+                }
+            }
+
+            out.writeInt(CompileServerClient.STATUS_OK);
+            CompileServerClient.writeClassBytes(out, classBytes);
+            out.flush();
+        } catch (final IOException exp) {
+            exp.printStackTrace();
+        }
+    }
+
+    /**
+     * Makes javac target the client's Java version, adding --release when
+     * the client is older than this JVM.
+     *
+     * @return why the request is refused, or null if it is accepted
+     */
+    private static String targetVersion(final int clientVersion,
+                    final List<String> options) {
+        final int version = Runtime.version().feature();
+        if (clientVersion > version) {
+            return "client runs Java " + clientVersion + ", server runs Java " + version;
+        }
+        if (clientVersion < version && ! options.contains("--release")
+                && ! options.contains("-target")) {
+            options.add("--release");
+            options.add(Integer.toString(clientVersion));
+        }
+        return null;
+    }
+
+    /**
+     * Returns sizes and modification times of the classpath jars, or null
+     * if the request reads files whose changes they don't show: anything
+     * on a sourcepath, or a classpath directory.
+     */
+    private static String inputStamps(final String sourcePath, final String classPath) {
+        if (sourcePath != null) {
+            return null;
+        }
+        final StringBuilder buf = new StringBuilder();
+        if (classPath != null) {
+            final StringTokenizer st = new StringTokenizer(classPath, File.pathSeparator);
+            while (st.hasMoreTokens()) {
+                final File entry = new File(st.nextToken());
+                if (entry.isDirectory()) {
+                    return null;
+                }
+                // a missing entry is stamped 0/0, so it counts once created
+                buf.append(entry.getPath()).append('\0')
+                   .append(entry.length()).append('\0')
+                   .append(entry.lastModified()).append('\0');
+            }
+        }
+        return buf.toString();
+    }
+
+    // only the owner may connect to the socket
+    private static void restrictToOwner(final Path socket) throws IOException {
+        try {
+            Files.setPosixFilePermissions(socket, EnumSet.of(
+                    PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+        } catch (final UnsupportedOperationException exp) {
+            // not a POSIX file system - rely on the peer check
+        }
+    }
+
+    /**
+     * Returns why the request is refused, or null if it is accepted.
+     */
+    private static String checkRequest(final SocketChannel channel,
+                    final List<String> options) throws IOException {
+        try {
+            final UnixDomainPrincipal peer =
+                channel.getOption(ExtendedSocketOptions.SO_PEERCRED);
+            final UserPrincipal self = FileSystems.getDefault().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+            if (! peer.user().equals(self)) {
+                return "client runs as another user";
+            }
+        } catch (final UnsupportedOperationException exp) {
+            // no peer credentials here - rely on the socket permissions
+        }
+
+        for (int i = 0; i < options.size(); i++) {
+            final String option = options.get(i);
+            if (ALLOWED_OPTIONS_WITH_VALUE.contains(option)) {
+                // skip the value
+                i++;
+                continue;
+            }
+            if (! isAllowed(option)) {
+                return "javac option not allowed: " + option;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isAllowed(final String option) {
+        for (final String allowed : ALLOWED_OPTIONS) {
+            if (option.startsWith(allowed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String cacheKey(final String... parts) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (final String part : parts) {
+                if (part != null) {
+                    digest.update(part.getBytes(StandardCharsets.UTF_8));
+                    // separator, so that ("ab", "c") and ("a", "bc") differ
+                    digest.update((byte) 0);
+                } else {
+                    digest.update((byte) 1);
+                }
+            }
+            final StringBuilder buf = new StringBuilder();
+            for (final byte b : digest.digest()) {
+                buf.append(String.format("%02x", b));
+            }
+            return buf.toString();
+        } catch (final NoSuchAlgorithmException exp) {
+            throw new IllegalStateException(exp);
+        }
+    }
+
+    public static void main(final String[] args) throws IOException {
+        String path = System.getProperty(CompileServerClient.SOCKET_PROPERTY);
+        if (args.length > 0) {
+            path = args[0];
+        }
+        if (path == null) {
+            System.err.println("usage: CompileServer <socket path> [cacheSize]");
+            System.exit(1);
+        }
+        final int cacheSize = args.length > 1 ?
+                Integer.parseInt(args[1]) : DEFAULT_CACHE_SIZE;
+
+        final CompileServer server = new CompileServer(Paths.get(path), cacheSize);
+        // warm the compiler up before the first client shows up
+        server.compiler.compile("$warmup.java",
+                "class $warmup { public static void main(String[] args) {} }",
+                new StringWriter());
+        server.serve();
+    }
+}
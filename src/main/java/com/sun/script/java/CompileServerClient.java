@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved.
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: Redistributions of source code
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of
+ * is contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * CompileServerClient.java
+ */
+
+package com.sun.script.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.tools.Diagnostic;
+
+/**
+ * Sends compile requests to a {@link CompileServer} over a Unix domain socket.
+ */
+final class CompileServerClient {
+    /** System property naming the socket of the compile server. */
+    static final String SOCKET_PROPERTY = "com.sun.script.java.compileServer";
+
+    /**
+     * System property: milliseconds to wait for the compile server to
+     * answer a request before compiling in-process.
+     */
+    static final String TIMEOUT_PROPERTY = "com.sun.script.java.compileServer.timeout";
+    private static final long DEFAULT_TIMEOUT_MILLIS = 30000L;
+
+    // wire protocol
+    static final int MAGIC = 0x4A534333;
+    static final int STATUS_OK = 0;
+    static final int STATUS_FAILED = 1;
+    static final int STATUS_REJECTED = 2;
+
+    // closes channels of requests past their deadline
+    private static final ScheduledExecutorService watchdog =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "java-engine-compile-server-watchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    private final Path socket;
+    private final long timeoutMillis;
+
+    CompileServerClient(final Path socket) {
+        this(socket, Long.getLong(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT_MILLIS));
+    }
+
+    CompileServerClient(final Path socket, final long timeoutMillis) {
+        this.socket = socket;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Returns client for the socket configured by the
+     * "com.sun.script.java.compileServer" property, or null if not set.
+     */
+    static CompileServerClient fromSystemProperty() {
+        final String path = System.getProperty(SOCKET_PROPERTY);
+        if (path == null || path.length() == 0) {
+            return null;
+        }
+        return new CompileServerClient(Paths.get(path));
+    }
+
+    /**
+     * compile given source on the compile server.
+     *
+     * @return bytecodes as a Map
+     * @throws CompilationException if compilation failed, with the
+     *         diagnostics as formatted by the server
+     * @throws IOException if the server could not be reached, did not
+     *         answer in time or rejected the request. Caller should fall
+     *         back to in-process compilation.
+     */
+    Map<String, byte[]> compile(final String fileName, final String source,
+                    final String sourcePath, final String classPath,
+                    final CompileProfile profile)
+                    throws IOException, CompilationException {
+        if (! Files.exists(socket)) {
+            throw new IOException("no compile server at " + socket);
+        }
+
+        try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            // blocked connect, read or write fail once the channel is closed
+            final ScheduledFuture<?> deadline = watchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    closeQuietly(channel);
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            try {
+                return compile(channel, fileName, source, sourcePath, classPath, profile);
+            } catch (final ClosedChannelException exp) {
+                throw new IOException("compile server did not answer within "
+                                      + timeoutMillis + " ms", exp);
+            } finally {
+                deadline.cancel(false);
+            }
+        }
+    }
+
+    private static void closeQuietly(final SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (final IOException exp) {
+            // ignore, the request fails anyway
+        }
+    }
+
+    private Map<String, byte[]> compile(final SocketChannel channel,
+                    final String fileName, final String source,
+                    final String sourcePath, final String classPath,
+                    final CompileProfile profile)
+                    throws IOException, CompilationException {
+        channel.connect(UnixDomainSocketAddress.of(socket));
+
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel)));
+        out.writeInt(MAGIC);
+        // class files must be loadable by this JVM
+        out.writeInt(Runtime.version().feature());
+        // the server does not share our working directory
+        writeString(out, new File(fileName).exists() ?
+                new File(fileName).getAbsolutePath() : fileName);
+        writeString(out, source);
+        writeString(out, toAbsolutePath(sourcePath));
+        writeString(out, toAbsolutePath(classPath));
+        out.writeInt(profile.getOptions().size());
+        for (final String option : profile.getOptions()) {
+            writeString(out, option);
+        }
+        out.flush();
+
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel)));
+        final int status = in.readInt();
+        if (status == STATUS_OK) {
+            return readClassBytes(in);
+        } else if (status == STATUS_FAILED) {
+            throw new CompilationException(readDiagnostics(in));
+        } else if (status == STATUS_REJECTED) {
+            throw new IOException("compile server rejected request: " + readString(in));
+        } else {
+            throw new IOException("bad compile server status: " + status);
+        }
+    }
+
+    static void writeString(final DataOutputStream out, final String str)
+                    throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(final DataInputStream in) throws IOException {
+        final int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeClassBytes(final DataOutputStream out,
+                    final Map<String, byte[]> classBytes) throws IOException {
+        out.writeInt(classBytes.size());
+        for (final Map.Entry<String, byte[]> entry : classBytes.entrySet()) {
+            writeString(out, entry.getKey());
+            out.writeInt(entry.getValue().length);
+            out.write(entry.getValue());
+        }
+    }
+
+    static Map<String, byte[]> readClassBytes(final DataInputStream in)
+                    throws IOException {
+        final int count = in.readInt();
+        final Map<String, byte[]> classBytes = new HashMap<String, byte[]>(count * 2);
+        for (int i = 0; i < count; i++) {
+            final String name = readString(in);
+            final byte[] buf = new byte[in.readInt()];
+            in.readFully(buf);
+            classBytes.put(name, buf);
+        }
+        return classBytes;
+    }
+
+    static void writeDiagnostics(final DataOutputStream out,
+                    final List<ScriptDiagnostic> diagnostics) throws IOException {
+        out.writeInt(diagnostics.size());
+        for (final ScriptDiagnostic diagnostic : diagnostics) {
+            writeString(out, diagnostic.getKind().name());
+            writeString(out, diagnostic.getCode());
+            writeString(out, diagnostic.getSourceName());
+            out.writeLong(diagnostic.getLineNumber());
+            out.writeLong(diagnostic.getColumnNumber());
+            out.writeLong(diagnostic.getPosition());
+            out.writeLong(diagnostic.getStartPosition());
+            out.writeLong(diagnostic.getEndPosition());
+            writeString(out, diagnostic.getMessage());
+        }
+    }
+
+    static List<ScriptDiagnostic> readDiagnostics(final DataInputStream in)
+                    throws IOException {
+        final int count = in.readInt();
+        final List<ScriptDiagnostic> diagnostics = new ArrayList<ScriptDiagnostic>(count);
+        for (int i = 0; i < count; i++) {
+            final Diagnostic.Kind kind = Diagnostic.Kind.valueOf(readString(in));
+            final String code = readString(in);
+            final String sourceName = readString(in);
+            final long line = in.readLong();
+            final long column = in.readLong();
+            final long position = in.readLong();
+            final long startPosition = in.readLong();
+            final long endPosition = in.readLong();
+            diagnostics.add(new ScriptDiagnostic(kind, code, sourceName, line, column,
+                                                 position, startPosition, endPosition,
+                                                 readString(in)));
+        }
+        return diagnostics;
+    }
+
+    private static String toAbsolutePath(final String path) {
+        if (path == null) {
+            return null;
+        }
+
+        final StringBuilder buf = new StringBuilder();
+        final StringTokenizer st = new StringTokenizer(path, File.pathSeparator);
+        while (st.hasMoreTokens()) {
+            if (buf.length() != 0) {
+                buf.append(File.pathSeparatorChar);
+            }
+            buf.append(new File(st.nextToken()).getAbsolutePath());
+        }
+        return buf.toString();
+    }
+}
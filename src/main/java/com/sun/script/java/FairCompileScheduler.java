@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved.
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: Redistributions of source code
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of
+ * is contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * FairCompileScheduler.java
+ */
+
+package com.sun.script.java;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Hands out a fixed number of compile slots to the tenants of a
+ * {@link TenantEngineFactory}. Tenants with waiting compiles take turns,
+ * one compile per turn, so a tenant with many pending compiles doesn't
+ * delay the others by more than one compile each. A tenant already at its
+ * maximum of concurrent compiles sits out until one of them finishes.
+ *
+ * Compiles run on the calling thread; only the start is scheduled.
+ */
+final class FairCompileScheduler {
+    private final int slots;
+    // guarded by this
+    private int running;
+    // tenants with waiting compiles, in turn order
+    private final ArrayDeque<Tenant> ready = new ArrayDeque<Tenant>();
+
+    FairCompileScheduler(final int slots) {
+        this.slots = Math.max(1, slots);
+    }
+
+    /**
+     * Blocks until tenant may start a compile.
+     */
+    void acquire(final Tenant tenant) throws InterruptedException {
+        final Waiter waiter = new Waiter();
+        synchronized (this) {
+            final int max = tenant.getQuota().getMaxConcurrentCompiles();
+            if (max > 0 && tenant.running >= max) {
+                tenant.concurrencyLimited.incrementAndGet();
+            }
+            tenant.waiters.add(waiter);
+            makeReady(tenant);
+            dispatch();
+            try {
+                while (! waiter.granted) {
+                    wait();
+                }
+            } catch (final InterruptedException exp) {
+                if (waiter.granted) {
+                    release(tenant);
+                } else {
+                    tenant.waiters.remove(waiter);
+                }
+                throw exp;
+            }
+        }
+    }
+
+    /**
+     * Ends a compile started by {@link #acquire(Tenant)}.
+     */
+    synchronized void release(final Tenant tenant) {
+        running--;
+        tenant.running--;
+        if (! tenant.waiters.isEmpty()) {
+            makeReady(tenant);
+        }
+        dispatch();
+    }
+
+    private void makeReady(final Tenant tenant) {
+        if (! tenant.ready) {
+            tenant.ready = true;
+            ready.addLast(tenant);
+        }
+    }
+
+    // grant free slots round-robin, caller holds the lock
+    private void dispatch() {
+        boolean granted = false;
+        final Iterator<Tenant> it = ready.iterator();
+        final ArrayDeque<Tenant> again = new ArrayDeque<Tenant>();
+        while (running < slots && it.hasNext()) {
+            final Tenant tenant = it.next();
+            final int max = tenant.getQuota().getMaxConcurrentCompiles();
+            if (max > 0 && tenant.running >= max) {
+                // made ready again by its next release
+                it.remove();
+                tenant.ready = false;
+                continue;
+            }
+            final Waiter waiter = tenant.waiters.poll();
+            it.remove();
+            if (waiter == null) {
+                tenant.ready = false;
+                continue;
+            }
+            waiter.granted = true;
+            granted = true;
+            running++;
+            tenant.running++;
+            if (tenant.waiters.isEmpty()) {
+                tenant.ready = false;
+            } else {
+                // back of the line
+                again.addLast(tenant);
+            }
+        }
+        ready.addAll(again);
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    static final class Waiter {
+        // guarded by the scheduler
+        boolean granted;
+    }
+}
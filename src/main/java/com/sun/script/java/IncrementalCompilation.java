@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved.
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: Redistributions of source code
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of
+ * is contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * IncrementalCompilation.java
+ */
+
+package com.sun.script.java;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+
+/**
+ * Remembers classes compiled from sourcepath files, so that later compiles
+ * with the same sourcepath only give changed files and the files that
+ * depend on them to javac. Classes of unchanged files are handed to javac
+ * as already compiled classes through {@link MemoryJavaFileManager}.
+ *
+ * A file is changed when its size or modification time differs from when
+ * it was compiled. Both are read just before javac opens the file, so a
+ * file saved during a compile is seen as changed by the next one.
+ * Dependencies are read from the constant pool of the generated classes,
+ * see {@link ClassFileDependencies}.
+ */
+final class IncrementalCompilation {
+    // classes generated from one sourcepath file
+    private static final class Unit {
+        final long lastModified;
+        final long size;
+        final Map<String, byte[]> classes;
+        // classes referenced by this unit
+        final Set<String> referenced;
+
+        // stamp is null if it was not taken, such units are not recorded
+        Unit(final BasicFileAttributes stamp,
+                    final Map<String, byte[]> classes, final Set<String> referenced) {
+            this(stamp == null ? -1 : stamp.lastModifiedTime().toMillis(),
+                 stamp == null ? -1 : stamp.size(), classes, referenced);
+        }
+
+        Unit(final long lastModified, final long size,
+                    final Map<String, byte[]> classes, final Set<String> referenced) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.classes = classes;
+            this.referenced = referenced;
+        }
+    }
+
+    private final String sourcePath;
+    private final String classPath;
+    private final CompileProfile profile;
+    private final Map<Path, Unit> units = new HashMap<Path, Unit>();
+
+    IncrementalCompilation(final String sourcePath, final String classPath,
+                    final CompileProfile profile) {
+        this.sourcePath = sourcePath;
+        this.classPath = classPath;
+        this.profile = profile;
+    }
+
+    /**
+     * compile script, recompiling only changed sourcepath files and their
+     * dependents.
+     *
+     * @return bytecodes of the script and of the sourcepath classes it
+     *         references, directly or through other sourcepath classes
+     * @throws CompilationException if compilation failed
+     */
+    Map<String, byte[]> compile(final JavaCompiilerHelper compiler,
+                    final MemoryJavaFileManager manager,
+                    final StandardJavaFileManager stdManager, final JavaFileObject script,
+                    final Writer err) throws CompilationException {
+        final Set<Path> dirty;
+        final Map<String, byte[]> clean = new HashMap<String, byte[]>();
+        // sourcepath units by the classes they contain
+        final Map<String, Unit> unitOf = new HashMap<String, Unit>();
+        synchronized (this) {
+            dirty = findDirtyUnits();
+            for (final Map.Entry<Path, Unit> entry : units.entrySet()) {
+                if (! dirty.contains(entry.getKey())) {
+                    addUnit(entry.getValue(), clean, unitOf);
+                }
+            }
+        }
+
+        final Map<Path, BasicFileAttributes> stamps = manager.recordSourceStamps();
+        final List<JavaFileObject> compUnits = new ArrayList<JavaFileObject>();
+        compUnits.add(script);
+        final List<File> dirtyFiles = new ArrayList<File>();
+        for (final Path path : dirty) {
+            if (Files.exists(path)) {
+                dirtyFiles.add(path.toFile());
+            }
+        }
+        for (final JavaFileObject file :
+                stdManager.getJavaFileObjectsFromFiles(dirtyFiles)) {
+            compUnits.add(manager.stamping(file));
+        }
+
+        manager.setInputClasses(clean);
+        final Map<String, byte[]> classBytes =
+            compiler.compile(manager, compUnits, err, sourcePath, classPath, profile);
+
+        // group generated classes by the sourcepath file they came from
+        final Map<String, byte[]> scriptClasses = new HashMap<String, byte[]>();
+        final Map<Path, Map<String, byte[]>> generated =
+            new HashMap<Path, Map<String, byte[]>>();
+        for (final Map.Entry<String, byte[]> entry : classBytes.entrySet()) {
+            final JavaFileObject source = manager.getClassSources().get(entry.getKey());
+            final URI uri = source == null ? null : source.toUri();
+            if (source == script || uri == null || ! "file".equals(uri.getScheme())) {
+                scriptClasses.put(entry.getKey(), entry.getValue());
+                continue;
+            }
+            final Path path = Paths.get(uri).normalize();
+            Map<String, byte[]> classes = generated.get(path);
+            if (classes == null) {
+                classes = new HashMap<String, byte[]>();
+                generated.put(path, classes);
+            }
+            classes.put(entry.getKey(), entry.getValue());
+        }
+
+        final Map<Path, Unit> compiled = new HashMap<Path, Unit>();
+        for (final Map.Entry<Path, Map<String, byte[]>> entry : generated.entrySet()) {
+            final BasicFileAttributes stamp = stamps.get(entry.getKey());
+            final Unit unit = createUnit(stamp, entry.getValue());
+            if (unit == null) {
+                // can't tell what uses these, so keep them with the script
+                scriptClasses.putAll(entry.getValue());
+                continue;
+            }
+            addUnit(unit, null, unitOf);
+            if (stamp != null) {
+                // files without stamp are compiled again next time
+                compiled.put(entry.getKey(), unit);
+            }
+        }
+
+        synchronized (this) {
+            for (final Path path : dirty) {
+                units.remove(path);
+            }
+            units.putAll(compiled);
+        }
+
+        return reachable(scriptClasses, unitOf);
+    }
+
+    private static void addUnit(final Unit unit, final Map<String, byte[]> classes,
+                    final Map<String, Unit> unitOf) {
+        if (classes != null) {
+            classes.putAll(unit.classes);
+        }
+        for (final String name : unit.classes.keySet()) {
+            unitOf.put(name, unit);
+        }
+    }
+
+    // the given classes plus the sourcepath units they transitively reference
+    private static Map<String, byte[]> reachable(final Map<String, byte[]> roots,
+                    final Map<String, Unit> unitOf) {
+        final Map<String, byte[]> result = new HashMap<String, byte[]>(roots);
+        final Deque<String> pending = new ArrayDeque<String>();
+        for (final byte[] buf : roots.values()) {
+            try {
+                pending.addAll(ClassFileDependencies.referencedClasses(buf));
+            } catch (final IOException exp) {
+                // can't tell what the script uses, so offer all of it
+                pending.addAll(unitOf.keySet());
+            }
+        }
+        final Set<Unit> added = new HashSet<Unit>();
+        while (! pending.isEmpty()) {
+            final Unit unit = unitOf.get(pending.poll());
+            if (unit != null && added.add(unit)) {
+                result.putAll(unit.classes);
+                pending.addAll(unit.referenced);
+            }
+        }
+        return result;
+    }
+
+    // changed units plus, transitively, the units referencing their classes
+    private Set<Path> findDirtyUnits() {
+        final Set<Path> dirty = new HashSet<Path>();
+        final Set<String> dirtyClasses = new HashSet<String>();
+        for (final Map.Entry<Path, Unit> entry : units.entrySet()) {
+            if (isChanged(entry.getKey(), entry.getValue())) {
+                dirty.add(entry.getKey());
+                dirtyClasses.addAll(entry.getValue().classes.keySet());
+            }
+        }
+
+        boolean added = ! dirty.isEmpty();
+        while (added) {
+            added = false;
+            for (final Map.Entry<Path, Unit> entry : units.entrySet()) {
+                if (dirty.contains(entry.getKey())) {
+                    continue;
+                }
+                for (final String referenced : entry.getValue().referenced) {
+                    if (dirtyClasses.contains(referenced)) {
+                        dirty.add(entry.getKey());
+                        dirtyClasses.addAll(entry.getValue().classes.keySet());
+                        added = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return dirty;
+    }
+
+    private static boolean isChanged(final Path path, final Unit unit) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis() != unit.lastModified
+                || Files.size(path) != unit.size;
+        } catch (final IOException exp) {
+            // deleted or unreadable
+            return true;
+        }
+    }
+
+    // returns null if the classes can't be read
+    private static Unit createUnit(final BasicFileAttributes stamp,
+                    final Map<String, byte[]> classes) {
+        try {
+            final Set<String> referenced = new HashSet<String>();
+            for (final byte[] buf : classes.values()) {
+                referenced.addAll(ClassFileDependencies.referencedClasses(buf));
+            }
+            return new Unit(stamp, classes, referenced);
+        } catch (final IOException exp) {
+            // not recorded, will be compiled again next time
+            return null;
+        }
+    }
+}
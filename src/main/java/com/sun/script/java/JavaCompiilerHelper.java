@@ -32,9 +32,13 @@ package com.sun.script.java;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
 
 import javax.tools.Diagnostic;
 import javax.tools.DiagnosticCollector;
@@ -44,16 +48,59 @@ import javax.tools.JavaFileObject;
 import javax.tools.StandardJavaFileManager;
 import javax.tools.ToolProvider;
 
+import com.sun.source.util.JavacTask;
+
 /**
  * Simple interface to Java compiler using JSR 199 Compiler API.
  */
 public class JavaCompiilerHelper {
-    private final JavaCompiler tool;
-    private final StandardJavaFileManager stdManager;
+    /**
+     * System property: if "true", diagnostics of failed compiles are also
+     * written to the error writer. They are always available from the
+     * thrown {@link CompilationException}.
+     */
+    public static final String PRINT_DIAGNOSTICS = "com.sun.script.java.printDiagnostics";
+
+    private JavaCompiler tool;
+    // idle file managers. They are not thread-safe, so each compile takes
+    // one for itself and puts it back; the warm ones are reused first.
+    private final ConcurrentLinkedDeque<StandardJavaFileManager> stdManagers =
+        new ConcurrentLinkedDeque<StandardJavaFileManager>();
+
+    // compile server to try first, may be null
+    private final CompileServerClient server;
+
+    private final boolean printDiagnostics = Boolean.getBoolean(PRINT_DIAGNOSTICS);
+
+    // state of incremental compiles, keyed by sourcepath, classpath and options
+    private final Map<String, IncrementalCompilation> incrementalCompilations =
+        new HashMap<String, IncrementalCompilation>();
 
     public JavaCompiilerHelper() {
-        tool = ToolProvider.getSystemJavaCompiler();
-        stdManager = tool.getStandardFileManager(null, null, null);
+        this(CompileServerClient.fromSystemProperty());
+    }
+
+    JavaCompiilerHelper(final CompileServerClient server) {
+        this.server = server;
+        if (server == null) {
+            initTool();
+        } // else javac is loaded lazily, only if the server is unavailable
+    }
+
+    private synchronized void initTool() {
+        if (tool == null) {
+            tool = ToolProvider.getSystemJavaCompiler();
+            stdManagers.push(tool.getStandardFileManager(null, null, null));
+        }
+    }
+
+    private StandardJavaFileManager acquireStandardFileManager() {
+        final StandardJavaFileManager stdManager = stdManagers.poll();
+        return stdManager != null ? stdManager : tool.getStandardFileManager(null, null, null);
+    }
+
+    private void releaseStandardFileManager(final StandardJavaFileManager stdManager) {
+        stdManagers.push(stdManager);
     }
 
     public Map<String, byte[]> compile(final String source, final String fileName) {
@@ -79,26 +126,206 @@ public class JavaCompiilerHelper {
      * @param err error writer where diagnostic messages are written
      * @param sourcePath location of additional .java source files
      * @param classPath location of additional .class files
+     * @return bytecodes as a Map, or null if compilation failed
      */
     public Map<String, byte[]> compile(final String fileName, final String source,
                     final Writer err, final String sourcePath, final String classPath) {
+        try {
+            return compile(fileName, source, err, sourcePath, classPath,
+                           CompileProfile.DEFAULT, false);
+        } catch (final CompilationException exp) {
+            if (! printDiagnostics) {
+                print(exp.getDiagnostics(), err);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * compile given source and return bytecodes as a Map.
+     *
+     * @param fileName source fileName to be used for error messages etc.
+     * @param source Java source. A CharBuffer with a backing array is
+     *        parsed by javac without copying it.
+     * @param err error writer where diagnostic messages are written
+     * @param sourcePath location of additional .java source files
+     * @param classPath location of additional .class files
+     * @param profile javac options to use
+     * @param incremental reuse classes compiled by earlier calls from
+     *        sourcepath files that have not changed since
+     * @throws CompilationException if source does not compile
+     */
+    public Map<String, byte[]> compile(final String fileName, final CharSequence source,
+                    final Writer err, final String sourcePath, final String classPath,
+                    final CompileProfile profile, final boolean incremental)
+                    throws CompilationException {
+        return compile(fileName, MemoryJavaFileManager.makeStringSource(fileName, source),
+                       err, sourcePath, classPath, profile, incremental);
+    }
+
+    /**
+     * compile given UTF-8 source file and return bytecodes as a Map. The
+     * file is memory mapped and decoded once, into the buffer javac parses.
+     *
+     * @param file Java source file
+     * @param err error writer where diagnostic messages are written
+     * @param sourcePath location of additional .java source files
+     * @param classPath location of additional .class files
+     * @param profile javac options to use
+     * @param incremental reuse classes compiled by earlier calls from
+     *        sourcepath files that have not changed since
+     * @throws CompilationException if file does not compile
+     */
+    public Map<String, byte[]> compile(final Path file, final Writer err,
+                    final String sourcePath, final String classPath,
+                    final CompileProfile profile, final boolean incremental)
+                    throws CompilationException {
+        return compile(file.toString(),
+                       MemoryJavaFileManager.makeFileSource(file, StandardCharsets.UTF_8),
+                       err, sourcePath, classPath, profile, incremental);
+    }
+
+    private Map<String, byte[]> compile(final String fileName,
+                    final JavaFileObject compUnit, final Writer err,
+                    final String sourcePath, final String classPath,
+                    final CompileProfile profile, final boolean incremental)
+                    throws CompilationException {
+        final boolean useIncremental = incremental && sourcePath != null;
+        if (server != null && ! useIncremental) {
+            try {
+                return server.compile(fileName, compUnit.getCharContent(true).toString(),
+                                      sourcePath, classPath, profile);
+            } catch (final CompilationException exp) {
+                if (printDiagnostics) {
+                    print(exp.getDiagnostics(), err);
+                }
+                throw exp;
+            } catch (final IOException exp) {
+                // server not running - fall back to in-process compilation
+            }
+        }
+        initTool();
+
+        // create a new memory JavaFileManager
+        final StandardJavaFileManager stdManager = acquireStandardFileManager();
+        final MemoryJavaFileManager manager = new MemoryJavaFileManager(stdManager);
+
+        try {
+            if (useIncremental) {
+                return getIncrementalCompilation(sourcePath, classPath, profile)
+                        .compile(this, manager, stdManager, compUnit, err);
+            } else {
+                final List<JavaFileObject> compUnits = new ArrayList<JavaFileObject>(1);
+                compUnits.add(compUnit);
+                return compile(manager, compUnits, err, sourcePath, classPath, profile);
+            }
+        } finally {
+            try {
+                manager.close();
+            } catch (final IOException exp) {
+                exp.printStackTrace();
+            }
+            releaseStandardFileManager(stdManager);
+        }
+    }
+
+    /**
+     * run javac over the given compilation units.
+     *
+     * @return bytecodes as a Map
+     * @throws CompilationException if compilation failed
+     */
+    Map<String, byte[]> compile(final MemoryJavaFileManager manager,
+                    final List<JavaFileObject> compUnits, final Writer err,
+                    final String sourcePath, final String classPath,
+                    final CompileProfile profile) throws CompilationException {
         // to collect errors, warnings etc.
         final DiagnosticCollector<JavaFileObject> diagnostics =
             new DiagnosticCollector<JavaFileObject>();
 
-        // create a new memory JavaFileManager
-        final MemoryJavaFileManager manager = new MemoryJavaFileManager(stdManager);
+        // create a compilation task
+        final CompilationTask task = tool.getTask(err, manager, diagnostics,
+                getOptions(profile, sourcePath, classPath), null, compUnits);
+
+        if (task.call() == false) {
+            final List<ScriptDiagnostic> result = toScriptDiagnostics(diagnostics);
+            if (printDiagnostics) {
+                print(result, err);
+            }
+            throw new CompilationException(result);
+        }
+
+        return manager.getClassBytes();
+    }
+
+    /**
+     * check given String source without generating or loading bytecode.
+     *
+     * @param fileName source fileName to be used for error messages etc.
+     * @param source Java source
+     * @param sourcePath location of additional .java source files
+     * @param classPath location of additional .class files
+     * @param profile javac options to use
+     * @param attribute if true, javac runs up to type attribution, so type
+     *        errors are reported too. Otherwise the source is only parsed.
+     * @return errors and warnings reported by javac, empty if none
+     */
+    public List<ScriptDiagnostic> validate(final String fileName,
+                    final CharSequence source, final String sourcePath, final String classPath,
+                    final CompileProfile profile, final boolean attribute)
+                    throws IOException {
+        initTool();
 
-        // prepare the compilation unit
+        final DiagnosticCollector<JavaFileObject> diagnostics =
+            new DiagnosticCollector<JavaFileObject>();
+        final StandardJavaFileManager stdManager = acquireStandardFileManager();
+        final MemoryJavaFileManager manager = new MemoryJavaFileManager(stdManager);
         final List<JavaFileObject> compUnits = new ArrayList<JavaFileObject>(1);
-        final JavaFileObject makeStringSource = manager.makeStringSource(fileName, source);
-        compUnits.add(makeStringSource);
-
-        // javac options
-        final List<String> options = new ArrayList<String>();
-        options.add("-Xlint:all");
-        options.add("-g:none");
-        options.add("-deprecation");
+        compUnits.add(MemoryJavaFileManager.makeStringSource(fileName, source));
+
+        final List<String> options = getOptions(profile, sourcePath, classPath);
+        // annotation processors could generate files
+        options.add("-proc:none");
+
+        try {
+            final JavacTask task = (JavacTask) tool.getTask(null, manager, diagnostics,
+                                                    options, null, compUnits);
+            if (attribute) {
+                task.analyze();
+            } else {
+                task.parse();
+            }
+        } finally {
+            releaseStandardFileManager(stdManager);
+        }
+        return toScriptDiagnostics(diagnostics);
+    }
+
+    private static List<ScriptDiagnostic> toScriptDiagnostics(
+                    final DiagnosticCollector<JavaFileObject> diagnostics) {
+        final List<ScriptDiagnostic> result = new ArrayList<ScriptDiagnostic>();
+        for (final Diagnostic<? extends JavaFileObject> diagnostic :
+                diagnostics.getDiagnostics()) {
+            result.add(new ScriptDiagnostic(diagnostic));
+        }
+        ScriptDiagnostic.track(result);
+        return result;
+    }
+
+    // write diagnostics to err, formatting their messages
+    static void print(final List<ScriptDiagnostic> diagnostics, final Writer err) {
+        final PrintWriter perr = new PrintWriter(err);
+        for (final ScriptDiagnostic diagnostic : diagnostics) {
+            perr.println(diagnostic);
+        }
+        perr.flush();
+    }
+
+    // javac options
+    private static List<String> getOptions(final CompileProfile profile,
+                    final String sourcePath, final String classPath) {
+        final List<String> options =
+            new ArrayList<String>(profile.getOptions(sourcePath != null));
         if (sourcePath != null) {
             options.add("-sourcepath");
             options.add(sourcePath);
@@ -108,30 +335,19 @@ public class JavaCompiilerHelper {
             options.add("-classpath");
             options.add(classPath);
         }
+        return options;
+    }
 
-        // create a compilation task
-        final CompilationTask task =
-            tool.getTask(err, manager, diagnostics, options, null, compUnits);
-
-        if (task.call() == false) {
-            final PrintWriter perr = new PrintWriter(err);
-            for (final Diagnostic diagnostic : diagnostics.getDiagnostics()) {
-                final String message = diagnostic.getMessage(null);
-                perr.println(message);
-
-                System.out.println(message);
+    private IncrementalCompilation getIncrementalCompilation(final String sourcePath,
+                    final String classPath, final CompileProfile profile) {
+        final String key = sourcePath + '\0' + classPath + '\0' + profile.getOptions();
+        synchronized (incrementalCompilations) {
+            IncrementalCompilation compilation = incrementalCompilations.get(key);
+            if (compilation == null) {
+                compilation = new IncrementalCompilation(sourcePath, classPath, profile);
+                incrementalCompilations.put(key, compilation);
             }
-            perr.flush();
-            return null;
-        }
-
-        final Map<String, byte[]> classBytes = manager.getClassBytes();
-        try {
-            manager.close();
-        } catch (final IOException exp) {
-            exp.printStackTrace();
+            return compilation;
         }
-
-        return classBytes;
     }
 }
@@ -30,11 +30,30 @@
 package com.sun.script.java;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
+import java.io.Writer;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.script.AbstractScriptEngine;
 import javax.script.Bindings;
@@ -56,12 +75,27 @@ public class JavaScriptEngine extends AbstractScriptEngine
     private final JavaCompiilerHelper compiler;
 
     public JavaScriptEngine() {
-        compiler = new JavaCompiilerHelper();
+        this(new JavaCompiilerHelper());
+    }
+
+    // compiler may be shared with other engines, e.g. of the same factory
+    JavaScriptEngine(final JavaCompiilerHelper compiler) {
+        this.compiler = compiler;
+        // look for "com.sun.script.java.routeOutput"
+        if (Boolean.getBoolean(SYSPROP_PREFIX + ROUTE_OUTPUT)) {
+            ScriptOutput.install();
+        }
     }
 
     // my factory, may be null
     private ScriptEngineFactory factory;
 
+    // runs evals on script threads, may be null
+    private volatile ScriptExecutor executor;
+
+    // tenant whose quotas and class cache apply to compiles, may be null
+    private volatile Tenant tenant;
+
     // my implementation for CompiledScript
     private class JavaCompiledScript extends CompiledScript {
         private final Class clazz;
@@ -77,32 +111,78 @@ public class JavaScriptEngine extends AbstractScriptEngine
 
         @Override
         public Object eval(final ScriptContext ctx) throws ScriptException {
-            return evalClass(clazz, ctx);
+            return run(clazz, ctx);
         }
     }
 
+    /**
+     * compile the given script. Concurrent calls for the same script and
+     * context settings share one compile, and so one class: the static
+     * context set through setScriptContext is then shared too.
+     */
     @Override
     public CompiledScript compile(final String script) throws ScriptException {
-        final Class clazz = parse(script, context);
+        final Class clazz = parse(script, context, null, true);
         return new JavaCompiledScript(clazz);
     }
 
     @Override
     public CompiledScript compile(final Reader reader) throws ScriptException {
-        return compile(readFully(reader));
+        final Class clazz = parse(readFully(reader), context, null, true);
+        return new JavaCompiledScript(clazz);
+    }
+
+    /**
+     * compile the given UTF-8 source file. The file is memory mapped and
+     * decoded once, straight into the buffer javac parses. The path of
+     * the file is used as file name.
+     */
+    public CompiledScript compile(final Path file) throws ScriptException {
+        return compile(file, context, null);
+    }
+
+    /**
+     * compile source file with given context. Names of all generated
+     * classes are added to classNames.
+     */
+    CompiledScript compile(final Path file, final ScriptContext ctx,
+                    final Set<String> classNames) throws ScriptException {
+        final Class clazz = parse(new CompileRequest(file, ctx, tenant), ctx, classNames,
+                                  true);
+        return new JavaCompiledScript(clazz);
     }
 
     @Override
     public Object eval(final String str, final ScriptContext ctx)
                        throws ScriptException {
-        final Class clazz = parse(str, ctx);
-        return evalClass(clazz, ctx);
+        final Class clazz = parse(str, ctx, null, false);
+        return run(clazz, ctx);
     }
 
     @Override
     public Object eval(final Reader reader, final ScriptContext ctx)
                        throws ScriptException {
-        return eval(readFully(reader), ctx);
+        final Class clazz = parse(readFully(reader), ctx, null, false);
+        return run(clazz, ctx);
+    }
+
+    /**
+     * Evaluate the given UTF-8 source file.
+     *
+     * @see #compile(Path)
+     */
+    public Object eval(final Path file) throws ScriptException {
+        return eval(file, context);
+    }
+
+    /**
+     * Evaluate the given UTF-8 source file with given context.
+     *
+     * @see #compile(Path)
+     */
+    public Object eval(final Path file, final ScriptContext ctx) throws ScriptException {
+        final Class clazz = parse(new CompileRequest(file, ctx, tenant), ctx, null, false);
+        return run(clazz, ctx);
     }
 
     @Override
@@ -124,25 +204,355 @@ public class JavaScriptEngine extends AbstractScriptEngine
         this.factory = factory;
     }
 
+    void setTenant(final Tenant tenant) {
+        this.tenant = tenant;
+    }
+
+    /**
+     * Run evals of this engine on threads of the given executor, with the
+     * deadline set by the "timeout" variable. null runs evals on the
+     * calling thread, which is the default.
+     */
+    public void setScriptExecutor(final ScriptExecutor executor) {
+        this.executor = executor;
+    }
+
+    public ScriptExecutor getScriptExecutor() {
+        return executor;
+    }
+
+    /**
+     * Check script for errors without generating or loading bytecode.
+     * fileName, sourcepath and classpath of the current context are used.
+     *
+     * @param script Java source
+     * @param attribute if true, type errors are reported too. Otherwise
+     *        only syntax is checked, which is faster.
+     * @return errors and warnings reported by javac, empty if none
+     */
+    public List<ScriptDiagnostic> validate(final String script,
+                    final boolean attribute) throws ScriptException {
+        return validate(script, context, attribute);
+    }
+
+    /**
+     * Check script for errors without generating or loading bytecode.
+     *
+     * @see #validate(String, boolean)
+     */
+    public List<ScriptDiagnostic> validate(final String script,
+                    final ScriptContext ctx, final boolean attribute)
+                    throws ScriptException {
+        try {
+            return compiler.validate(getFileName(ctx), script, getSourcePath(ctx),
+                                     getClassPath(ctx), getProfile(ctx), attribute);
+        } catch (final IOException exp) {
+            throw new ScriptException(exp);
+        }
+    }
+
+    /**
+     * Load scripts precompiled by {@link ScriptBundler} without running
+     * the compiler. classpath and parentLoader of the current context are
+     * used to resolve classes referenced by the scripts.
+     *
+     * @param in bundle contents
+     * @return compiled scripts keyed by script path relative to the
+     *         bundled script directory, in bundle order
+     */
+    public Map<String, CompiledScript> loadBundle(final InputStream in)
+                    throws ScriptException {
+        final ScriptBundle bundle;
+        try {
+            bundle = ScriptBundle.read(in);
+        } catch (final IOException exp) {
+            throw new ScriptException(exp);
+        }
+
+        final String classPath = getClassPath(context);
+        final ClassLoader parentLoader = getParentLoader(context);
+        final Map<String, CompiledScript> scripts =
+            new LinkedHashMap<String, CompiledScript>();
+        for (final ScriptBundle.Entry entry : bundle.getEntries()) {
+            // the bundler picked this class the way compile() would, it need
+            // not have a main method
+            final MemoryClassLoader loader = new MemoryClassLoader(
+                    entry.getClassBytes(), classPath, parentLoader);
+            final Class<?> clazz;
+            try {
+                clazz = loader.load(entry.getMainClass());
+            } catch (final ClassNotFoundException exp) {
+                throw new ScriptException(exp);
+            }
+            scripts.put(entry.getName(), new JavaCompiledScript(clazz));
+        }
+        return scripts;
+    }
+
     // Internals only below this point
 
-    private Class parse(final String str, final ScriptContext ctx) throws ScriptException {
-        final String fileName = getFileName(ctx);
-        final String sourcePath = getSourcePath(ctx);
-        final String classPath = getClassPath(ctx);
+    // source plus compile settings, the key for de-duplicating compiles
+    private static final class CompileRequest {
+        // either source or file is set
+        final CharSequence source;
+        final int sourceHash;
+        final Path file;
+        final long fileModified;
+        final long fileSize;
+        final String fileName;
+        final String sourcePath;
+        final String classPath;
+        final String mainClassName;
+        final ClassLoader parentLoader;
+        final CompileProfile profile;
+        final boolean incremental;
+        final Tenant tenant;
+
+        CompileRequest(final CharSequence source, final ScriptContext ctx,
+                        final Tenant tenant) throws ScriptException {
+            this(source, null, getFileName(ctx), ctx, tenant);
+        }
+
+        CompileRequest(final Path file, final ScriptContext ctx,
+                        final Tenant tenant) throws ScriptException {
+            this(null, file, file.toString(), ctx, tenant);
+        }
+
+        private CompileRequest(final CharSequence source, final Path file,
+                        final String fileName, final ScriptContext ctx,
+                        final Tenant tenant) throws ScriptException {
+            this.tenant = tenant;
+            this.source = source;
+            this.sourceHash = hash(source);
+            this.file = file;
+            if (file != null) {
+                try {
+                    this.fileModified = Files.getLastModifiedTime(file).toMillis();
+                    this.fileSize = Files.size(file);
+                } catch (final IOException exp) {
+                    throw new ScriptException(exp);
+                }
+            } else {
+                this.fileModified = 0L;
+                this.fileSize = 0L;
+            }
+            this.fileName = fileName;
+            this.sourcePath = getSourcePath(ctx);
+            this.classPath = getClassPath(ctx);
+            this.mainClassName = getMainClassName(ctx);
+            this.parentLoader = getParentLoader(ctx);
+            this.profile = getProfile(ctx);
+            this.incremental = isIncremental(ctx);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (! (obj instanceof CompileRequest)) {
+                return false;
+            }
+            final CompileRequest other = (CompileRequest) obj;
+            return sourceHash == other.sourceHash
+                && contentEquals(source, other.source)
+                && Objects.equals(file, other.file)
+                && fileModified == other.fileModified
+                && fileSize == other.fileSize
+                && fileName.equals(other.fileName)
+                && Objects.equals(sourcePath, other.sourcePath)
+                && Objects.equals(classPath, other.classPath)
+                && Objects.equals(mainClassName, other.mainClassName)
+                && parentLoader == other.parentLoader
+                && profile == other.profile
+                && incremental == other.incremental
+                && tenant == other.tenant;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sourceHash, file, fileName, sourcePath, classPath,
+                                mainClassName, System.identityHashCode(parentLoader),
+                                profile.getName(), incremental,
+                                System.identityHashCode(tenant));
+        }
+
+        // same as String.hashCode, for any CharSequence
+        private static int hash(final CharSequence cs) {
+            if (cs == null) {
+                return 0;
+            } else if (cs instanceof String) {
+                return cs.hashCode();
+            }
+            int h = 0;
+            final int len = cs.length();
+            for (int i = 0; i < len; i++) {
+                h = 31 * h + cs.charAt(i);
+            }
+            return h;
+        }
+
+        private static boolean contentEquals(final CharSequence a, final CharSequence b) {
+            if (a == null || b == null) {
+                return a == b;
+            }
+            return CharSequence.compare(a, b) == 0;
+        }
+    }
+
+    // result of a compile, shared by all callers of the same request
+    static final class CompileResult {
+        // never modified, class loaders get a copy
+        final Map<String, byte[]> classBytes;
+        final Set<String> classNames;
+        // total size of the generated .class files
+        final long classBytesSize;
+        // class of compile() callers, loaded on first use
+        private Class sharedClass;
+
+        CompileResult(final Map<String, byte[]> classBytes) {
+            this.classBytes = Collections.unmodifiableMap(classBytes);
+            this.classNames = this.classBytes.keySet();
+            long size = 0L;
+            for (final byte[] buf : classBytes.values()) {
+                size += buf.length;
+            }
+            this.classBytesSize = size;
+        }
+
+        synchronized Class getSharedClass(final CompileRequest request)
+                        throws ScriptException {
+            if (sharedClass == null) {
+                sharedClass = loadClass(request);
+            }
+            return sharedClass;
+        }
+
+        // loads the classes again, in a class loader of their own
+        Class loadClass(final CompileRequest request) throws ScriptException {
+            // MemoryClassLoader clears the entries it has defined
+            return loadScriptClass(new HashMap<String, byte[]>(classBytes),
+                                   request.classPath, request.parentLoader,
+                                   request.mainClassName);
+        }
+    }
+
+    // compiles currently running in any engine. Callers that ask for the
+    // same request while it runs wait for it and share its class bytes.
+    private static final ConcurrentMap<CompileRequest, FutureTask<CompileResult>> inFlight =
+        new ConcurrentHashMap<CompileRequest, FutureTask<CompileResult>>();
+
+    private Class parse(final CharSequence str, final ScriptContext ctx,
+                    final Set<String> classNames, final boolean shared)
+                    throws ScriptException {
+        return parse(new CompileRequest(str, ctx, tenant), ctx, classNames, shared);
+    }
+
+    /**
+     * @param shared if true, the class may be shared with other callers
+     *        compiling the same request. Evals pass false: scripts keep
+     *        their context in static fields (see setScriptContext), so
+     *        concurrent evals must not run the same class. They still
+     *        share the compile, each loading its own copy of the classes.
+     */
+    private Class parse(final CompileRequest request, final ScriptContext ctx,
+                    final Set<String> classNames, final boolean shared)
+                    throws ScriptException {
+        // the key doesn't cover sourcepath file contents, so those compiles
+        // would be served stale classes
+        final boolean cacheable = shared && request.sourcePath == null;
+        if (request.tenant != null && cacheable) {
+            final CompileResult cached = request.tenant.getCached(request);
+            if (cached != null) {
+                if (classNames != null) {
+                    classNames.addAll(cached.classNames);
+                }
+                return cached.getSharedClass(request);
+            }
+        }
+
+        final Writer err = ctx.getErrorWriter();
+        final Callable<CompileResult> compile = new Callable<CompileResult>() {
+            @Override
+            public CompileResult call() throws ScriptException {
+                return compileClass(request, err);
+            }
+        };
+        final FutureTask<CompileResult> task = new FutureTask<CompileResult>(
+                new Callable<CompileResult>() {
+                    @Override
+                    public CompileResult call() throws ScriptException {
+                        if (request.tenant == null) {
+                            return compileClass(request, err);
+                        }
+                        // subject to the tenant's quotas
+                        return request.tenant.compile(request, compile, cacheable);
+                    }
+                });
+
+        final FutureTask<CompileResult> running = inFlight.putIfAbsent(request, task);
+        final CompileResult result;
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(request, task);
+            }
+            result = getResult(task);
+        } else {
+            // a failed compile throws the same CompilationException here;
+            // printed diagnostics went to the error writer of the first caller
+            result = getResult(running);
+        }
 
-        final Map<String, byte[]> classBytes = compiler.compile(
-                fileName, str, ctx.getErrorWriter(), sourcePath, classPath);
+        if (classNames != null) {
+            classNames.addAll(result.classNames);
+        }
+        return shared ? result.getSharedClass(request) : result.loadClass(request);
+    }
 
-        if (classBytes == null) {
-            throw new ScriptException("compilation failed");
+    private CompileResult compileClass(final CompileRequest request, final Writer err)
+                    throws ScriptException {
+        final Map<String, byte[]> classBytes;
+        if (request.file != null) {
+            classBytes = compiler.compile(request.file, err, request.sourcePath,
+                    request.classPath, request.profile, request.incremental);
+        } else {
+            classBytes = compiler.compile(request.fileName, request.source, err,
+                    request.sourcePath, request.classPath, request.profile,
+                    request.incremental);
         }
+        return new CompileResult(classBytes);
+    }
 
+    private static CompileResult getResult(final Future<CompileResult> future)
+                    throws ScriptException {
+        try {
+            return future.get();
+        } catch (final InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            throw new ScriptException(exp);
+        } catch (final CancellationException exp) {
+            throw new ScriptException(exp);
+        } catch (final ExecutionException exp) {
+            final Throwable cause = exp.getCause();
+            // every caller of the same request sees the same failure
+            if (cause instanceof ScriptException) {
+                throw (ScriptException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ScriptException(exp);
+        }
+    }
+
+    // load compiled classes and return the class whose main method is called
+    static Class loadScriptClass(final Map<String, byte[]> classBytes,
+                    final String classPath, final ClassLoader parentLoader,
+                    final String mainClassName) throws ScriptException {
         // create a ClassLoader to load classes from MemoryJavaFileManager
         final MemoryClassLoader loader = new MemoryClassLoader(classBytes, classPath,
-                                            getParentLoader(ctx));
+                                            parentLoader);
 
-        final String mainClassName = getMainClassName(ctx);
         if (mainClassName != null) {
             try {
                 final Class clazz = loader.load(mainClassName);
@@ -248,6 +658,8 @@ public class JavaScriptEngine extends AbstractScriptEngine
     // the prefix used for such System properties
     private static final String SYSPROP_PREFIX = "com.sun.script.java.";
 
+    private static final String ROUTE_OUTPUT = "routeOutput";
+
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
     private static final String ARGUMENTS = "arguments";
     private static String[] getArguments(final ScriptContext ctx) {
@@ -263,7 +675,7 @@ public class JavaScriptEngine extends AbstractScriptEngine
     }
 
     private static final String SOURCEPATH = "sourcepath";
-    private static String getSourcePath(final ScriptContext ctx) {
+    static String getSourcePath(final ScriptContext ctx) {
         final int scope = ctx.getAttributesScope(SOURCEPATH);
         if (scope != -1) {
             return ctx.getAttribute(SOURCEPATH).toString();
@@ -299,6 +711,55 @@ public class JavaScriptEngine extends AbstractScriptEngine
         }
     }
 
+    private static final String INCREMENTAL = "incremental";
+    private static boolean isIncremental(final ScriptContext ctx) {
+        final int scope = ctx.getAttributesScope(INCREMENTAL);
+        if (scope != -1) {
+            return Boolean.parseBoolean(ctx.getAttribute(INCREMENTAL).toString());
+        } else {
+            // look for "com.sun.script.java.incremental"
+            return Boolean.getBoolean(SYSPROP_PREFIX + INCREMENTAL);
+        }
+    }
+
+    private static final String PROFILE = "profile";
+    private static CompileProfile getProfile(final ScriptContext ctx)
+                            throws ScriptException {
+        final int scope = ctx.getAttributesScope(PROFILE);
+        Object profile;
+        if (scope != -1) {
+            profile = ctx.getAttribute(PROFILE);
+        } else {
+            // look for "com.sun.script.java.profile"
+            profile = System.getProperty(SYSPROP_PREFIX + PROFILE);
+        }
+        if (profile == null) {
+            return CompileProfile.DEFAULT;
+        } else if (profile instanceof CompileProfile) {
+            return (CompileProfile) profile;
+        }
+        final CompileProfile res = CompileProfile.forName(profile.toString());
+        if (res == null) {
+            throw new ScriptException("unknown compile profile: " + profile);
+        }
+        return res;
+    }
+
+    private static final String TIMEOUT = "timeout";
+    private static long getTimeout(final ScriptContext ctx) {
+        final int scope = ctx.getAttributesScope(TIMEOUT);
+        if (scope != -1) {
+            final Object timeout = ctx.getAttribute(TIMEOUT);
+            if (timeout instanceof Number) {
+                return ((Number) timeout).longValue();
+            }
+            return Long.parseLong(timeout.toString());
+        } else {
+            // look for "com.sun.script.java.timeout"
+            return Long.getLong(SYSPROP_PREFIX + TIMEOUT, 0L);
+        }
+    }
+
     private static final String PARENTLOADER = "parentLoader";
     private static ClassLoader getParentLoader(final ScriptContext ctx) {
         final int scope = ctx.getAttributesScope(PARENTLOADER);
@@ -311,6 +772,20 @@ public class JavaScriptEngine extends AbstractScriptEngine
         return null;
     }
 
+    // run script class, on the script executor if one is set
+    private Object run(final Class clazz, final ScriptContext ctx) throws ScriptException {
+        final ScriptExecutor exec = executor;
+        if (exec == null) {
+            return evalClass(clazz, ctx);
+        }
+        return exec.execute(new Callable<Object>() {
+            @Override
+            public Object call() throws ScriptException {
+                return evalClass(clazz, ctx);
+            }
+        }, getTimeout(ctx));
+    }
+
     private static Object evalClass(final Class clazz, final ScriptContext ctx)
                             throws ScriptException {
         // JSR-223 requirement
@@ -343,8 +818,14 @@ public class JavaScriptEngine extends AbstractScriptEngine
                 // get "command line" args for the main method
                 final String[] args = getArguments(ctx);
 
-                // call main method
-                mainMethod.invoke(null, new Object[] { args });
+                // call main method, with System.out/err routed to ctx
+                // if ScriptOutput is installed
+                final ScriptOutput.Scope scope = ScriptOutput.bind(ctx);
+                try {
+                    mainMethod.invoke(null, new Object[] { args });
+                } finally {
+                    scope.close();
+                }
             }
 
             // return main class as eval's result
@@ -354,18 +835,34 @@ public class JavaScriptEngine extends AbstractScriptEngine
         }
     }
 
-    // read a Reader fully and return the content as string
-    private String readFully(final Reader reader) throws ScriptException {
-        final char[] arr = new char[8*1024]; // 8K at a time
-        final StringBuilder buf = new StringBuilder();
+    // read a Reader fully into a buffer that javac parses without copying
+    private static CharBuffer readFully(final Reader reader) throws ScriptException {
+        // read in chunks, then copy once into a buffer of the exact size
+        final List<char[]> chunks = new ArrayList<char[]>();
+        char[] arr = new char[8*1024]; // 8K at a time
+        int last = 0;
+        int total = 0;
         int numChars;
         try {
-            while ((numChars = reader.read(arr, 0, arr.length)) > 0) {
-                buf.append(arr, 0, numChars);
+            while ((numChars = reader.read(arr, last, arr.length - last)) > 0) {
+                last += numChars;
+                total += numChars;
+                if (last == arr.length) {
+                    chunks.add(arr);
+                    arr = new char[arr.length];
+                    last = 0;
+                }
             }
         } catch (final IOException exp) {
             throw new ScriptException(exp);
         }
-        return buf.toString();
+
+        final CharBuffer buf = CharBuffer.allocate(total);
+        for (final char[] chunk : chunks) {
+            buf.put(chunk);
+        }
+        buf.put(arr, 0, last);
+        buf.flip();
+        return buf;
     }
 }
\ No newline at end of file
@@ -31,17 +31,136 @@
 
 package com.sun.script.java;
 
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
 
 /**
  * This is script engine factory for "Java" script engine.
  */
 public class JavaScriptEngineFactory implements ScriptEngineFactory {
+    // System property that starts the warm-up when the factory is created
+    private static final String WARMUP_PROPERTY = "com.sun.script.java.warmup";
+
+    // default number of times the warm-up corpus is compiled and run
+    private static final int DEFAULT_WARMUP_ITERATIONS = 20;
+
+    // warm-up corpus, null means programs generated by getProgram
+    private volatile List<String> warmUpSources;
+    private volatile int warmUpIterations = DEFAULT_WARMUP_ITERATIONS;
+    private final CountDownLatch warmedUp = new CountDownLatch(1);
+    private Thread warmUpThread;
+
+    // shared by all engines of this factory, so they use the compiler and
+    // file manager the warm-up warmed. Created on first use.
+    private JavaCompiilerHelper compiler;
+
+    public JavaScriptEngineFactory() {
+        if (Boolean.getBoolean(WARMUP_PROPERTY)) {
+            startWarmUp();
+        }
+    }
+
+    /**
+     * Sets the sources compiled and run by the warm-up. Must be called
+     * before {@link #startWarmUp()}. By default small programs generated
+     * by {@link #getProgram(String...)} are used.
+     */
+    public void setWarmUpSources(final List<String> sources) {
+        warmUpSources = new ArrayList<String>(sources);
+    }
+
+    /**
+     * Sets how many times the warm-up corpus is compiled and run.
+     */
+    public void setWarmUpIterations(final int iterations) {
+        warmUpIterations = iterations;
+    }
+
+    /**
+     * Starts compiling and running the warm-up corpus on a background
+     * thread, so that javac, the file manager and the JIT are warm before
+     * the first real eval. Engines of this factory share one compiler and
+     * its file managers, so the warm-up benefits all of them. Calling this
+     * more than once has no effect. Setting system property
+     * "com.sun.script.java.warmup" to true starts the warm-up when the
+     * factory is created.
+     */
+    public synchronized void startWarmUp() {
+        if (warmUpThread != null) {
+            return;
+        }
+        warmUpThread = new Thread("java-engine-warmup") {
+            @Override
+            public void run() {
+                try {
+                    warmUp();
+                } finally {
+                    warmedUp.countDown();
+                }
+            }
+        };
+        warmUpThread.setDaemon(true);
+        warmUpThread.start();
+    }
+
+    /**
+     * Returns true once the warm-up has finished.
+     */
+    public boolean isWarmedUp() {
+        return warmedUp.getCount() == 0;
+    }
+
+    /**
+     * Waits for the warm-up to finish. Health checks can use this to take
+     * traffic only once compile latency has reached steady state.
+     *
+     * @return true if the warm-up finished, false if the timeout elapsed
+     */
+    public boolean awaitWarmUp(final long timeout, final TimeUnit unit)
+                    throws InterruptedException {
+        return warmedUp.await(timeout, unit);
+    }
+
+    private void warmUp() {
+        final ScriptEngine engine = getScriptEngine();
+        final ScriptContext ctx = new SimpleScriptContext();
+        ctx.setWriter(Writer.nullWriter());
+        ctx.setErrorWriter(Writer.nullWriter());
+
+        final List<String> sources = warmUpSources;
+        for (int i = 0; i < warmUpIterations; i++) {
+            try {
+                if (sources == null) {
+                    // fresh class names each round, so nothing is cached
+                    engine.eval(getProgram(), ctx);
+                    engine.eval(getProgram(
+                            "StringBuilder buf = new StringBuilder()",
+                            "for (int i = 0; i < 16; i++) buf.append(i)",
+                            "java.util.List<String> list = new java.util.ArrayList<String>()",
+                            "list.add(buf.toString())"), ctx);
+                } else {
+                    for (final String source : sources) {
+                        engine.eval(source, ctx);
+                    }
+                }
+            } catch (final ScriptException exp) {
+                // a broken corpus must not keep the node from becoming ready
+                exp.printStackTrace();
+                return;
+            }
+        }
+    }
+
     @Override
     public String getEngineName() {
         return "java";
@@ -161,12 +280,19 @@ public class JavaScriptEngineFactory implements ScriptEngineFactory {
 
     @Override
     public ScriptEngine getScriptEngine() {
-        final JavaScriptEngine engine = new JavaScriptEngine();
+        final JavaScriptEngine engine = new JavaScriptEngine(getCompiler());
         engine.setFactory(this);
         return engine;
     }
 
 
+    private synchronized JavaCompiilerHelper getCompiler() {
+        if (compiler == null) {
+            compiler = new JavaCompiilerHelper();
+        }
+        return compiler;
+    }
+
     // used to generate a unique class name in getProgram
     private String getClassName() {
         return "com_sun_script_java_Main$" + getNextClassNumber();
@@ -31,47 +31,178 @@
 
 package com.sun.script.java;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Reader;
-import java.io.StringReader;
 import java.net.URI;
 import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.tools.FileObject;
 import javax.tools.ForwardingJavaFileManager;
+import javax.tools.ForwardingJavaFileObject;
 import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
 import javax.tools.JavaFileObject.Kind;
 import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardLocation;
 
 /**
  * JavaFileManager that keeps compiled .class bytes in memory.
  */
-public final class MemoryJavaFileManager extends ForwardingJavaFileManager {
+public final class MemoryJavaFileManager extends ForwardingJavaFileManager<JavaFileManager> {
 
     /** Java source file extension. */
     private final static String EXT = ".java";
 
     private Map<String, byte[]> classBytes;
 
+    // source file object each output class was generated from
+    private Map<String, JavaFileObject> classSources;
+
+    // previously compiled classes offered to javac on the class path
+    private Map<String, byte[]> inputClasses = new HashMap<String, byte[]>();
+
+    // attributes of source files when javac first opened them, null if
+    // not recorded
+    private Map<Path, BasicFileAttributes> sourceStamps;
+
     public MemoryJavaFileManager(final JavaFileManager fileManager) {
         super(fileManager);
         classBytes = new HashMap<String, byte[]>();
+        classSources = new HashMap<String, JavaFileObject>();
     }
 
     public Map<String, byte[]> getClassBytes() {
         return classBytes;
     }
 
+    /**
+     * Returns the source file object each compiled class was generated
+     * from, as reported by javac. Classes without known source are absent.
+     */
+    Map<String, JavaFileObject> getClassSources() {
+        return classSources;
+    }
+
+    /**
+     * Makes already compiled classes visible to javac as if they were on
+     * the class path. They are preferred over the same class on sourcepath,
+     * so their sources are not parsed again.
+     */
+    void setInputClasses(final Map<String, byte[]> inputClasses) {
+        this.inputClasses = inputClasses;
+    }
+
+    /**
+     * Makes this manager read size and modification time of each sourcepath
+     * file just before javac opens it. A file saved while javac runs thus
+     * has a newer stamp than recorded here.
+     *
+     * @return the map the stamps are put in, by normalized path
+     */
+    Map<Path, BasicFileAttributes> recordSourceStamps() {
+        sourceStamps = new HashMap<Path, BasicFileAttributes>();
+        return sourceStamps;
+    }
+
+    /**
+     * Returns the given source so that reading it is recorded like reading
+     * a sourcepath file. Sources that are not files are returned as is.
+     */
+    JavaFileObject stamping(final JavaFileObject file) {
+        if (sourceStamps == null || file.getKind() != Kind.SOURCE
+                || ! "file".equals(file.toUri().getScheme())) {
+            return file;
+        }
+        return new StampingSource(file);
+    }
+
     @Override
     public void close() throws IOException {
         classBytes = new HashMap<String, byte[]>();
+        classSources = new HashMap<String, JavaFileObject>();
+    }
+
+    @Override
+    public Iterable<JavaFileObject> list(final JavaFileManager.Location location,
+                                    final String packageName,
+                                    final Set<Kind> kinds,
+                                    final boolean recurse) throws IOException {
+        final Iterable<JavaFileObject> files =
+            super.list(location, packageName, kinds, recurse);
+        if (location == StandardLocation.SOURCE_PATH && sourceStamps != null) {
+            final List<JavaFileObject> result = new ArrayList<JavaFileObject>();
+            for (final JavaFileObject file : files) {
+                result.add(stamping(file));
+            }
+            return result;
+        }
+        if (location != StandardLocation.CLASS_PATH
+                || ! kinds.contains(Kind.CLASS) || inputClasses.isEmpty()) {
+            return files;
+        }
+
+        final List<JavaFileObject> result = new ArrayList<JavaFileObject>();
+        for (final JavaFileObject file : files) {
+            result.add(file);
+        }
+        for (final Map.Entry<String, byte[]> entry : inputClasses.entrySet()) {
+            final String name = entry.getKey();
+            final int dot = name.lastIndexOf('.');
+            final String pkg = dot == -1 ? "" : name.substring(0, dot);
+            if (pkg.equals(packageName)
+                    || (recurse && pkg.startsWith(packageName + "."))) {
+                result.add(new ClassInputBuffer(name, entry.getValue()));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String inferBinaryName(final JavaFileManager.Location location,
+                                    final JavaFileObject file) {
+        if (file instanceof ClassInputBuffer) {
+            return ((ClassInputBuffer) file).name;
+        }
+        return super.inferBinaryName(location, unwrap(file));
+    }
+
+    @Override
+    public boolean isSameFile(final FileObject a, final FileObject b) {
+        if (a instanceof ClassInputBuffer || b instanceof ClassInputBuffer) {
+            return a.equals(b);
+        }
+        return super.isSameFile(unwrap(a), unwrap(b));
+    }
+
+    // the standard file manager only accepts its own file objects
+    private static FileObject unwrap(final FileObject file) {
+        return file instanceof StampingSource ? ((StampingSource) file).source : file;
+    }
+
+    private static JavaFileObject unwrap(final JavaFileObject file) {
+        return file instanceof StampingSource ? ((StampingSource) file).source : file;
     }
 
     @Override
@@ -80,22 +211,181 @@ public final class MemoryJavaFileManager extends ForwardingJavaFileManager {
 
     /**
      * A file object used to represent Java source coming from a string.
+     * javac parses a CharBuffer that has a backing array in place; other
+     * character sequences are copied by javac first.
      */
     private static class StringInputBuffer extends SimpleJavaFileObject {
-        final String code;
+        final String name;
+        final CharSequence code;
 
-        StringInputBuffer(final String name, final String code) {
+        StringInputBuffer(final String name, final CharSequence code) {
             super(toURI(name), Kind.SOURCE);
+            this.name = name;
             this.code = code;
         }
 
+        // the name the script was given, not the path of its URI
+        @Override
+        public String getName() {
+            return name;
+        }
+
         @Override
         public CharBuffer getCharContent(final boolean ignoreEncodingErrors) {
+            if (code instanceof CharBuffer) {
+                // javac moves position and limit of the buffer it gets
+                return ((CharBuffer) code).duplicate();
+            }
             return CharBuffer.wrap(code);
         }
 
         public Reader openReader() {
-            return new StringReader(code);
+            return new CharBufferReader(getCharContent(true));
+        }
+    }
+
+    /**
+     * A file object used to represent Java source in a file. The file is
+     * memory mapped and decoded straight into the buffer given to javac.
+     */
+    private static class MappedFileInputBuffer extends SimpleJavaFileObject {
+        private final Path file;
+        private final Charset charset;
+
+        MappedFileInputBuffer(final Path file, final Charset charset) {
+            super(file.toUri(), Kind.SOURCE);
+            this.file = file;
+            this.charset = charset;
+        }
+
+        @Override
+        public String getName() {
+            return file.toString();
+        }
+
+        @Override
+        public CharBuffer getCharContent(final boolean ignoreEncodingErrors)
+                        throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                final MappedByteBuffer bytes =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                final CodingErrorAction action = ignoreEncodingErrors ?
+                    CodingErrorAction.REPLACE : CodingErrorAction.REPORT;
+                final CharsetDecoder decoder = charset.newDecoder()
+                    .onMalformedInput(action)
+                    .onUnmappableCharacter(action);
+
+                // large enough for the whole file, so it is decoded in one go
+                final CharBuffer chars = CharBuffer.allocate(
+                        (int) (bytes.remaining() * (double) decoder.maxCharsPerByte()) + 1);
+                CoderResult result = decoder.decode(bytes, chars, true);
+                if (result.isUnderflow()) {
+                    result = decoder.flush(chars);
+                }
+                if (result.isError()) {
+                    result.throwException();
+                }
+                chars.flip();
+                return chars;
+            }
+        }
+
+        public Reader openReader(final boolean ignoreEncodingErrors) throws IOException {
+            return new CharBufferReader(getCharContent(ignoreEncodingErrors));
+        }
+    }
+
+    /**
+     * A sourcepath file that records its attributes before javac reads it.
+     */
+    private class StampingSource extends ForwardingJavaFileObject<JavaFileObject> {
+        private final JavaFileObject source;
+
+        StampingSource(final JavaFileObject source) {
+            super(source);
+            this.source = source;
+        }
+
+        private void stamp() {
+            final Path path = Paths.get(toUri()).normalize();
+            if (sourceStamps.containsKey(path)) {
+                return;
+            }
+            try {
+                sourceStamps.put(path,
+                        Files.readAttributes(path, BasicFileAttributes.class));
+            } catch (final IOException exp) {
+                // not recorded, javac reports the file if it can't read it
+            }
+        }
+
+        @Override
+        public CharSequence getCharContent(final boolean ignoreEncodingErrors)
+                        throws IOException {
+            stamp();
+            return super.getCharContent(ignoreEncodingErrors);
+        }
+
+        @Override
+        public Reader openReader(final boolean ignoreEncodingErrors) throws IOException {
+            stamp();
+            return super.openReader(ignoreEncodingErrors);
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            stamp();
+            return super.openInputStream();
+        }
+    }
+
+    /**
+     * A Reader over a CharBuffer that does not copy the buffer.
+     */
+    private static class CharBufferReader extends Reader {
+        private final CharBuffer buf;
+
+        CharBufferReader(final CharBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read(final char[] cbuf, final int off, final int len) {
+            if (! buf.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, buf.remaining());
+            buf.get(cbuf, off, n);
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * A file object used to offer compiled Java bytecode to javac.
+     */
+    private static class ClassInputBuffer extends SimpleJavaFileObject {
+        private final String name;
+        private final byte[] bytes;
+
+        ClassInputBuffer(final String name, final byte[] bytes) {
+            super(toURI(name + Kind.CLASS.extension), Kind.CLASS);
+            this.name = name;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public InputStream openInputStream() {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public long getLastModified() {
+            // always newer than its source, see setInputClasses
+            return Long.MAX_VALUE;
         }
     }
 
@@ -129,16 +419,23 @@ public final class MemoryJavaFileManager extends ForwardingJavaFileManager {
                                     final Kind kind,
                                     final FileObject sibling) throws IOException {
         if (kind == Kind.CLASS) {
+            if (sibling instanceof JavaFileObject) {
+                classSources.put(className, (JavaFileObject) sibling);
+            }
             return new ClassOutputBuffer(className);
         } else {
             return super.getJavaFileForOutput(location, className, kind, sibling);
         }
     }
 
-    static JavaFileObject makeStringSource(final String name, final String code) {
+    static JavaFileObject makeStringSource(final String name, final CharSequence code) {
         return new StringInputBuffer(name, code);
     }
 
+    static JavaFileObject makeFileSource(final Path file, final Charset charset) {
+        return new MappedFileInputBuffer(file, charset);
+    }
+
     static URI toURI(final String name) {
         final File file = new File(name);
         if (file.exists()) {
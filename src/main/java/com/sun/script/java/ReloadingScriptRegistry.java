@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved.
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: Redistributions of source code
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of
+ * is contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * ReloadingScriptRegistry.java
+ */
+
+package com.sun.script.java;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+/**
+ * Keeps compiled script files up to date with their sources.
+ *
+ * A background thread watches the registered script files and the
+ * sourcepath files they were compiled from. Change events are debounced;
+ * then only the changed scripts and the scripts that depend on changed
+ * sourcepath files are recompiled. The {@link CompiledScript} returned by
+ * {@link #register(Path)} switches to the new classes atomically: an eval
+ * already running finishes on the old version. If recompilation fails,
+ * the old version is kept and the errors go to the context's error writer.
+ *
+ * Script files are compiled with {@link JavaScriptEngine#compile(Path)};
+ * sourcepath, classpath and the other settings are taken from the engine's
+ * context.
+ */
+public final class ReloadingScriptRegistry implements Closeable {
+    /** Default quiet period before changes are recompiled. */
+    private static final long DEFAULT_DEBOUNCE_MILLIS = 100L;
+
+    private final JavaScriptEngine engine;
+    private final long debounceMillis;
+    private final WatchService watcher;
+    private final Map<Path, ReloadableScript> scripts =
+        new ConcurrentHashMap<Path, ReloadableScript>();
+    private final Set<Path> watchedDirs = new HashSet<Path>();
+    private Thread thread;
+
+    // a registered script file and its current compiled version
+    private final class ReloadableScript extends CompiledScript {
+        private final Path file;
+        private volatile CompiledScript current;
+        // sourcepath files the current version was compiled from
+        private volatile Set<Path> dependencies;
+
+        ReloadableScript(final Path file) {
+            this.file = file;
+        }
+
+        @Override
+        public ScriptEngine getEngine() {
+            return engine;
+        }
+
+        @Override
+        public Object eval(final ScriptContext ctx) throws ScriptException {
+            return current.eval(ctx);
+        }
+    }
+
+    public ReloadingScriptRegistry(final JavaScriptEngine engine) throws IOException {
+        this(engine, DEFAULT_DEBOUNCE_MILLIS);
+    }
+
+    public ReloadingScriptRegistry(final JavaScriptEngine engine,
+                    final long debounceMillis) throws IOException {
+        this.engine = engine;
+        this.debounceMillis = debounceMillis;
+        this.watcher = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * compile the given script file and keep it up to date.
+     *
+     * @return script that always evaluates the latest successfully compiled
+     *         version of the file
+     */
+    public CompiledScript register(final Path file) throws IOException, ScriptException {
+        final Path path = file.toAbsolutePath().normalize();
+        ReloadableScript script = scripts.get(path);
+        if (script != null) {
+            return script;
+        }
+        script = new ReloadableScript(path);
+        compile(script);
+        scripts.put(path, script);
+        return script;
+    }
+
+    /**
+     * Returns the script registered for the given file, or null.
+     */
+    public CompiledScript get(final Path file) {
+        return scripts.get(file.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Starts watching the registered scripts. Calling this more than once
+     * has no effect.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread("java-engine-reloader") {
+            @Override
+            public void run() {
+                try {
+                    watch();
+                } catch (final InterruptedException exp) {
+                    // closed
+                } catch (final ClosedWatchServiceException exp) {
+                    // closed
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+        watcher.close();
+    }
+
+    private void watch() throws InterruptedException {
+        while (true) {
+            final Set<Path> changed = new HashSet<Path>();
+            boolean overflow = false;
+            WatchKey key = watcher.take();
+            // wait until there is no new event for debounceMillis
+            while (key != null) {
+                overflow |= collect(key, changed);
+                key = watcher.poll(debounceMillis, TimeUnit.MILLISECONDS);
+            }
+            reload(changed, overflow);
+        }
+    }
+
+    // returns true if events were lost
+    private static boolean collect(final WatchKey key, final Set<Path> changed) {
+        final Path dir = (Path) key.watchable();
+        boolean overflow = false;
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            changed.add(dir.resolve((Path) event.context()));
+        }
+        key.reset();
+        return overflow;
+    }
+
+    // on overflow we don't know what changed, so all scripts are reloaded
+    private void reload(final Set<Path> changed, final boolean overflow) {
+        for (final ReloadableScript script : scripts.values()) {
+            if (overflow || changed.contains(script.file)
+                    || ! Collections.disjoint(changed, script.dependencies)) {
+                try {
+                    compile(script);
+                } catch (final IOException exp) {
+                    // e.g. file deleted or being replaced - keep old version
+                } catch (final CompilationException exp) {
+                    // nobody else will see these - keep old version
+                    if (! Boolean.getBoolean(JavaCompiilerHelper.PRINT_DIAGNOSTICS)) {
+                        JavaCompiilerHelper.print(exp.getDiagnostics(),
+                                                  engine.getContext().getErrorWriter());
+                    }
+                } catch (final ScriptException exp) {
+                    // keep old version
+                } catch (final RuntimeException exp) {
+                    // don't let one script stop the others from reloading
+                    final PrintWriter err =
+                        new PrintWriter(engine.getContext().getErrorWriter());
+                    exp.printStackTrace(err);
+                    err.flush();
+                }
+            }
+        }
+    }
+
+    private void compile(final ReloadableScript script)
+                    throws IOException, ScriptException {
+        final ScriptContext ctx = engine.getContext();
+        final Set<String> classNames = new HashSet<String>();
+        final CompiledScript compiled = engine.compile(script.file, ctx, classNames);
+
+        final Set<Path> dependencies =
+            findSources(classNames, JavaScriptEngine.getSourcePath(ctx));
+        // publish first - failing to watch a directory must not lose
+        // the new version
+        script.dependencies = dependencies;
+        script.current = compiled;
+        watch(script.file.getParent());
+        for (final Path dependency : dependencies) {
+            watch(dependency.getParent());
+        }
+    }
+
+    // sourcepath files that generated the given classes
+    private static Set<Path> findSources(final Set<String> classNames,
+                    final String sourcePath) {
+        final Set<Path> sources = new HashSet<Path>();
+        if (sourcePath == null) {
+            return sources;
+        }
+        for (final String className : classNames) {
+            final int nested = className.indexOf('$');
+            final String topLevel = nested == -1 ?
+                    className : className.substring(0, nested);
+            final String relative = topLevel.replace('.', File.separatorChar) + ".java";
+            final StringTokenizer st = new StringTokenizer(sourcePath, File.pathSeparator);
+            while (st.hasMoreTokens()) {
+                final Path source = Paths.get(st.nextToken(), relative)
+                        .toAbsolutePath().normalize();
+                if (Files.exists(source)) {
+                    sources.add(source);
+                    break;
+                }
+            }
+        }
+        return sources;
+    }
+
+    private synchronized void watch(final Path dir) throws IOException {
+        if (watchedDirs.add(dir)) {
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                         StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved.
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: Redistributions of source code
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of
+ * is contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * ScriptBundle.java
+ */
+
+package com.sun.script.java;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Zip file of precompiled scripts. Class bytes of each script are stored
+ * under "script name/binary class name.class"; the index lists script name,
+ * main class and SHA-256 of the source, one tab separated line per script.
+ */
+final class ScriptBundle {
+    static final String INDEX = "META-INF/script-bundle.index";
+    private static final String CLASS_EXT = ".class";
+
+    /**
+     * One compiled script.
+     */
+    static final class Entry {
+        private final String name;
+        private final String mainClass;
+        private final String sourceHash;
+        private final Map<String, byte[]> classBytes;
+
+        Entry(final String name, final String mainClass, final String sourceHash,
+                    final Map<String, byte[]> classBytes) {
+            this.name = name;
+            this.mainClass = mainClass;
+            this.sourceHash = sourceHash;
+            this.classBytes = classBytes;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getMainClass() {
+            return mainClass;
+        }
+
+        String getSourceHash() {
+            return sourceHash;
+        }
+
+        Map<String, byte[]> getClassBytes() {
+            return classBytes;
+        }
+    }
+
+    private final List<Entry> entries;
+
+    ScriptBundle(final List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    void write(final OutputStream out) throws IOException {
+        final ZipOutputStream zip = new ZipOutputStream(out);
+
+        zip.putNextEntry(new ZipEntry(INDEX));
+        final Writer index = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+        for (final Entry entry : entries) {
+            index.write(entry.getName() + "\t" + entry.getMainClass() + "\t"
+                        + entry.getSourceHash() + "\n");
+        }
+        index.flush();
+        zip.closeEntry();
+
+        for (final Entry entry : entries) {
+            for (final Map.Entry<String, byte[]> cls : entry.getClassBytes().entrySet()) {
+                zip.putNextEntry(new ZipEntry(entry.getName() + "/"
+                        + cls.getKey().replace('.', '/') + CLASS_EXT));
+                zip.write(cls.getValue());
+                zip.closeEntry();
+            }
+        }
+        zip.finish();
+    }
+
+    static ScriptBundle read(final InputStream in) throws IOException {
+        final ZipInputStream zip = new ZipInputStream(in);
+        String index = null;
+        final Map<String, byte[]> files = new HashMap<String, byte[]>();
+        ZipEntry zipEntry;
+        while ((zipEntry = zip.getNextEntry()) != null) {
+            final byte[] content = readFully(zip);
+            if (INDEX.equals(zipEntry.getName())) {
+                index = new String(content, StandardCharsets.UTF_8);
+            } else {
+                files.put(zipEntry.getName(), content);
+            }
+        }
+        if (index == null) {
+            throw new IOException("not a script bundle: " + INDEX + " missing");
+        }
+
+        // script name -> entry, in index order
+        final Map<String, Map<String, byte[]>> classBytes =
+            new LinkedHashMap<String, Map<String, byte[]>>();
+        final List<String[]> lines = new ArrayList<String[]>();
+        for (final String line : index.split("\n")) {
+            if (line.length() == 0) {
+                continue;
+            }
+            final String[] fields = line.split("\t");
+            if (fields.length != 3) {
+                throw new IOException("bad script bundle index line: " + line);
+            }
+            lines.add(fields);
+            classBytes.put(fields[0], new HashMap<String, byte[]>());
+        }
+
+        for (final Map.Entry<String, byte[]> file : files.entrySet()) {
+            final String path = file.getKey();
+            final int sep = path.lastIndexOf(".java/");
+            if (sep == -1 || ! path.endsWith(CLASS_EXT)) {
+                continue;
+            }
+            final String script = path.substring(0, sep + ".java".length());
+            final Map<String, byte[]> scriptClasses = classBytes.get(script);
+            if (scriptClasses == null) {
+                continue;
+            }
+            final String className = path.substring(sep + ".java/".length(),
+                    path.length() - CLASS_EXT.length()).replace('/', '.');
+            scriptClasses.put(className, file.getValue());
+        }
+
+        final List<Entry> entries = new ArrayList<Entry>(lines.size());
+        for (final String[] fields : lines) {
+            entries.add(new Entry(fields[0], fields[1], fields[2],
+                                  classBytes.get(fields[0])));
+        }
+        return new ScriptBundle(entries);
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final byte[] buf = new byte[8*1024];
+        int numBytes;
+        while ((numBytes = in.read(buf, 0, buf.length)) > 0) {
+            bos.write(buf, 0, numBytes);
+        }
+        return bos.toByteArray();
+    }
+}
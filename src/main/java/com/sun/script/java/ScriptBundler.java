@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved.
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: Redistributions of source code
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of
+ * is contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * ScriptBundler.java
+ */
+
+package com.sun.script.java;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.script.ScriptException;
+
+/**
+ * Build-time tool that compiles a directory of scripts into a bundle that
+ * {@link JavaScriptEngine#loadBundle(java.io.InputStream)} loads without
+ * running javac.
+ *
+ * <pre>
+ *   java com.sun.script.java.ScriptBundler &lt;bundle file&gt; &lt;script dir&gt; [sourcepath]
+ * </pre>
+ *
+ * Each .java file under the script directory is compiled on its own, the
+ * same way ScriptEngine.compile() would compile it. The classpath of this
+ * tool is used as compile classpath.
+ */
+public final class ScriptBundler {
+    private final JavaCompiilerHelper compiler;
+    private final String sourcePath;
+    private final String classPath;
+
+    public ScriptBundler(final String sourcePath, final String classPath) {
+        this.compiler = new JavaCompiilerHelper(null);
+        this.sourcePath = sourcePath;
+        this.classPath = classPath;
+    }
+
+    /**
+     * compile all .java files under scriptDir and write the bundle to out.
+     *
+     * @throws ScriptException if any script fails to compile. Diagnostic
+     *         messages are written to err.
+     */
+    public void bundle(final File scriptDir, final OutputStream out,
+                    final PrintWriter err) throws IOException, ScriptException {
+        final List<File> files = new ArrayList<File>();
+        collectSources(scriptDir, files);
+
+        final List<ScriptBundle.Entry> entries = new ArrayList<ScriptBundle.Entry>();
+        for (final File file : files) {
+            final String name = scriptDir.toURI().relativize(file.toURI()).getPath();
+            final String source = new String(Files.readAllBytes(file.toPath()),
+                                             StandardCharsets.UTF_8);
+            final Map<String, byte[]> classBytes = compiler.compile(
+                    file.getPath(), source, err, sourcePath, classPath);
+            if (classBytes == null) {
+                throw new ScriptException("compilation failed", name, -1);
+            }
+
+            // class loading consumes the map, so select main class on a copy
+            final Class<?> mainClass = JavaScriptEngine.loadScriptClass(
+                    new HashMap<String, byte[]>(classBytes), classPath,
+                    ScriptBundler.class.getClassLoader(), null);
+            if (mainClass == null) {
+                throw new ScriptException("no class found", name, -1);
+            }
+            entries.add(new ScriptBundle.Entry(name, mainClass.getName(),
+                                               sha256(source), classBytes));
+        }
+        new ScriptBundle(entries).write(out);
+    }
+
+    private static void collectSources(final File dir, final List<File> files) {
+        final File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (final File child : children) {
+            if (child.isDirectory()) {
+                collectSources(child, files);
+            } else if (child.getName().endsWith(".java")) {
+                files.add(child);
+            }
+        }
+    }
+
+    private static String sha256(final String source) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final StringBuilder buf = new StringBuilder();
+            for (final byte b : digest.digest(source.getBytes(StandardCharsets.UTF_8))) {
+                buf.append(String.format("%02x", b));
+            }
+            return buf.toString();
+        } catch (final NoSuchAlgorithmException exp) {
+            throw new IllegalStateException(exp);
+        }
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: ScriptBundler <bundle file> <script dir> [sourcepath]");
+            System.exit(1);
+        }
+        final File bundleFile = new File(args[0]);
+        final File scriptDir = new File(args[1]);
+        final String sourcePath = args.length > 2 ? args[2] : null;
+
+        final File parent = bundleFile.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+
+        final PrintWriter err = new PrintWriter(System.err);
+        final ScriptBundler bundler = new ScriptBundler(sourcePath,
+                                        System.getProperty("java.class.path"));
+        try (OutputStream out = new FileOutputStream(bundleFile)) {
+            bundler.bundle(scriptDir, out, err);
+        } catch (final ScriptException exp) {
+            err.println(exp.getMessage());
+            err.flush();
+            bundleFile.delete();
+            System.exit(1);
+        }
+    }
+}
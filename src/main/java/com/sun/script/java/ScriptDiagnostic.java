@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved.
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: Redistributions of source code
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of
+ * is contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * ScriptDiagnostic.java
+ */
+
+package com.sun.script.java;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * An error, warning or note reported by javac for a script. Positions
+ * are those of {@link Diagnostic}: line and column start at 1, offsets at
+ * 0, and {@link Diagnostic#NOPOS} means unknown.
+ *
+ * The message is formatted the first time it is read, so callers that
+ * only look at kinds and positions don't pay for it. Until then javac's
+ * diagnostic is kept, and with it the script source and compiler state
+ * its arguments refer to, which can be megabytes per compile. So only the
+ * diagnostics of the last {@value #MAX_ATTACHED} failed compiles or
+ * validations still in use stay lazy; older ones are formatted and let go
+ * of javac's state. {@link #detach()} does so right away.
+ */
+public final class ScriptDiagnostic {
+    /** Compiles whose diagnostics may keep javac's state alive. */
+    static final int MAX_ATTACHED = 16;
+
+    // diagnostics of recent compiles, oldest first
+    private static final ArrayDeque<WeakReference<List<ScriptDiagnostic>>> attached =
+        new ArrayDeque<WeakReference<List<ScriptDiagnostic>>>();
+
+    private final Diagnostic.Kind kind;
+    private final String code;
+    private final String sourceName;
+    private final long line;
+    private final long column;
+    private final long position;
+    private final long startPosition;
+    private final long endPosition;
+
+    // formats the message, cleared once it did
+    private Diagnostic<? extends JavaFileObject> diagnostic;
+    private String message;
+
+    ScriptDiagnostic(final Diagnostic<? extends JavaFileObject> diagnostic) {
+        this.kind = diagnostic.getKind();
+        this.code = diagnostic.getCode();
+        this.sourceName = diagnostic.getSource() == null ?
+                null : diagnostic.getSource().getName();
+        this.line = diagnostic.getLineNumber();
+        this.column = diagnostic.getColumnNumber();
+        this.position = diagnostic.getPosition();
+        this.startPosition = diagnostic.getStartPosition();
+        this.endPosition = diagnostic.getEndPosition();
+        this.diagnostic = diagnostic;
+    }
+
+    // from a message formatted elsewhere, e.g. by the compile server
+    ScriptDiagnostic(final Diagnostic.Kind kind, final String code,
+                    final String sourceName, final long line, final long column,
+                    final long position, final long startPosition,
+                    final long endPosition, final String message) {
+        this.kind = kind;
+        this.code = code;
+        this.sourceName = sourceName;
+        this.line = line;
+        this.column = column;
+        this.position = position;
+        this.startPosition = startPosition;
+        this.endPosition = endPosition;
+        this.message = message;
+    }
+
+    public Diagnostic.Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Returns javac's key for this kind of diagnostic, e.g.
+     * "compiler.err.cant.resolve.location", or null.
+     */
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * Returns the name of the source file, or null if not tied to one.
+     */
+    public String getSourceName() {
+        return sourceName;
+    }
+
+    public long getLineNumber() {
+        return line;
+    }
+
+    public long getColumnNumber() {
+        return column;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long getStartPosition() {
+        return startPosition;
+    }
+
+    public long getEndPosition() {
+        return endPosition;
+    }
+
+    /**
+     * Returns the message in the default locale.
+     */
+    public synchronized String getMessage() {
+        if (message == null) {
+            message = diagnostic.getMessage(null);
+            diagnostic = null;
+        }
+        return message;
+    }
+
+    /**
+     * Formats the message now and releases javac's diagnostic, so that
+     * this object no longer keeps the compilation alive.
+     *
+     * @return this diagnostic
+     */
+    public ScriptDiagnostic detach() {
+        getMessage();
+        return this;
+    }
+
+    /**
+     * Registers the diagnostics of one compile, detaching those of the
+     * oldest registered compile still in use if there are too many.
+     */
+    static void track(final List<ScriptDiagnostic> diagnostics) {
+        if (diagnostics.isEmpty()) {
+            return;
+        }
+        final WeakReference<List<ScriptDiagnostic>> evicted;
+        synchronized (attached) {
+            attached.addLast(new WeakReference<List<ScriptDiagnostic>>(diagnostics));
+            evicted = attached.size() > MAX_ATTACHED ? attached.pollFirst() : null;
+        }
+        // unreachable lists are left to the garbage collector unformatted
+        final List<ScriptDiagnostic> old = evicted == null ? null : evicted.get();
+        if (old != null) {
+            for (final ScriptDiagnostic diagnostic : old) {
+                diagnostic.detach();
+            }
+        }
+    }
+
+    /**
+     * Returns the diagnostic the way javac prints it, without the source
+     * line.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder buf = new StringBuilder();
+        if (sourceName != null) {
+            buf.append(sourceName).append(':');
+            if (line != Diagnostic.NOPOS) {
+                buf.append(line).append(':');
+            }
+            buf.append(' ');
+        }
+        switch (kind) {
+        case ERROR:
+            buf.append("error: ");
+            break;
+        case WARNING:
+        case MANDATORY_WARNING:
+            buf.append("warning: ");
+            break;
+        case NOTE:
+            buf.append("Note: ");
+            break;
+        default:
+            break;
+        }
+        return buf.append(getMessage()).toString();
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved.
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: Redistributions of source code
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of
+ * is contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * ScriptExecutor.java
+ */
+
+package com.sun.script.java;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.script.ScriptException;
+
+/**
+ * Runs script evals on their own threads, with a wall-clock deadline per
+ * eval and a limit on evals running at the same time. Set it on an engine
+ * with {@link JavaScriptEngine#setScriptExecutor(ScriptExecutor)}.
+ *
+ * Each eval gets a virtual thread if the Java runtime has them, otherwise
+ * a daemon platform thread. When the deadline passes or the calling thread
+ * is interrupted, the script thread is interrupted. Scripts are expected
+ * to stop when interrupted; one that doesn't keeps its slot of the
+ * concurrency limit until it returns.
+ */
+public final class ScriptExecutor implements Closeable {
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final Semaphore permits;
+
+    /**
+     * @param maxConcurrency maximum number of evals running at once
+     */
+    public ScriptExecutor(final int maxConcurrency) {
+        ExecutorService service = newVirtualThreadExecutor();
+        virtual = service != null;
+        if (service == null) {
+            service = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "java-engine-eval");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        executor = service;
+        permits = new Semaphore(maxConcurrency, true);
+    }
+
+    /**
+     * Returns true if evals run on virtual threads.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Run task on a script thread and wait for its result.
+     *
+     * @param timeoutMillis deadline for waiting for a free slot and running
+     *        the call together, 0 or less means no deadline
+     */
+    Object execute(final Callable<Object> task, final long timeoutMillis)
+                    throws ScriptException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            if (timeoutMillis > 0) {
+                if (! permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new ScriptException("script timed out after " + timeoutMillis
+                                              + " ms waiting to run");
+                }
+            } else {
+                permits.acquire();
+            }
+        } catch (final InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            throw new ScriptException(exp);
+        }
+
+        // set by whoever owns the permit: the task once it starts, or the
+        // caller if it cancels the task before it started
+        final AtomicBoolean claimed = new AtomicBoolean();
+        final Future<Object> future;
+        try {
+            future = executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    if (! claimed.compareAndSet(false, true)) {
+                        // cancelled before it started, permit already released
+                        return null;
+                    }
+                    try {
+                        return task.call();
+                    } finally {
+                        // released when the script returns, not when the
+                        // caller gives up waiting
+                        permits.release();
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException exp) {
+            permits.release();
+            throw new ScriptException(exp);
+        }
+
+        try {
+            if (timeoutMillis > 0) {
+                return future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } else {
+                return future.get();
+            }
+        } catch (final TimeoutException exp) {
+            cancel(future, claimed);
+            throw new ScriptException("script timed out after " + timeoutMillis + " ms");
+        } catch (final InterruptedException exp) {
+            cancel(future, claimed);
+            Thread.currentThread().interrupt();
+            throw new ScriptException(exp);
+        } catch (final CancellationException exp) {
+            throw new ScriptException(exp);
+        } catch (final ExecutionException exp) {
+            final Throwable cause = exp.getCause();
+            if (cause instanceof ScriptException) {
+                throw (ScriptException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ScriptException(exp);
+        }
+    }
+
+    // interrupt the task, releasing its permit if it never started
+    private void cancel(final Future<Object> future, final AtomicBoolean claimed) {
+        future.cancel(true);
+        if (claimed.compareAndSet(false, true)) {
+            permits.release();
+        }
+    }
+
+    /**
+     * Stops accepting evals and interrupts the running ones.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor(), if this runtime has it
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (final NoSuchMethodException exp) {
+            return null;
+        } catch (final IllegalAccessException exp) {
+            return null;
+        } catch (final InvocationTargetException exp) {
+            // e.g. preview feature not enabled
+            return null;
+        }
+    }
+}
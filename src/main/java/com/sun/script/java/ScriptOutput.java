@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved.
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: Redistributions of source code
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of
+ * is contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * ScriptOutput.java
+ */
+
+package com.sun.script.java;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import javax.script.ScriptContext;
+
+/**
+ * Routes System.out and System.err of running scripts to the writers of
+ * the ScriptContext they were evaluated with.
+ *
+ * {@link #install()} replaces System.out and System.err once with streams
+ * that look up the eval running on the current thread. Each eval writes
+ * through its own buffered stream, so concurrent evals don't contend on a
+ * shared lock; the buffers are flushed to the context writers in batches
+ * and when the eval returns. Threads not running an eval write to the
+ * original streams. Setting system property "com.sun.script.java.routeOutput"
+ * to true installs the routing when the first engine is created.
+ *
+ * Streams obtained from System.out before installing are not routed.
+ */
+public final class ScriptOutput {
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final ThreadLocal<Scope> current = new ThreadLocal<Scope>();
+    private static volatile boolean installed;
+
+    // scope returned when output is not routed
+    private static final Scope NONE = new Scope(null, null);
+
+    private ScriptOutput() {
+    }
+
+    /**
+     * Replaces System.out and System.err with routing streams. Calling
+     * this more than once has no effect.
+     */
+    public static synchronized void install() {
+        if (installed) {
+            return;
+        }
+        System.setOut(new RoutingPrintStream(System.out, false));
+        System.setErr(new RoutingPrintStream(System.err, true));
+        installed = true;
+    }
+
+    public static boolean isInstalled() {
+        return installed;
+    }
+
+    /**
+     * Routes output of the current thread to the writers of ctx until the
+     * returned scope is closed.
+     */
+    static Scope bind(final ScriptContext ctx) {
+        if (! installed) {
+            return NONE;
+        }
+        final Scope scope = new Scope(ctx, current.get());
+        current.set(scope);
+        return scope;
+    }
+
+    /**
+     * Output streams of one eval.
+     */
+    static final class Scope implements AutoCloseable {
+        private final ScriptContext ctx;
+        // scope of an enclosing eval on the same thread
+        private final Scope previous;
+        private PrintStream out;
+        private PrintStream err;
+        // true while passing output on to the context's writers. Writers
+        // that lead back to System.out, like the default writer of a
+        // SimpleScriptContext, then skip this scope.
+        boolean writing;
+
+        Scope(final ScriptContext ctx, final Scope previous) {
+            this.ctx = ctx;
+            this.previous = previous;
+        }
+
+        PrintStream getStream(final boolean error) {
+            if (error) {
+                if (err == null) {
+                    err = newStream(ctx.getErrorWriter(), this);
+                }
+                return err;
+            }
+            if (out == null) {
+                out = newStream(ctx.getWriter(), this);
+            }
+            return out;
+        }
+
+        /**
+         * Flushes buffered output and routes the thread back to the
+         * enclosing eval, if any.
+         */
+        @Override
+        public void close() {
+            if (this == NONE) {
+                return;
+            }
+            // unbind first, output written while flushing goes to the
+            // enclosing eval
+            if (previous != null) {
+                current.set(previous);
+            } else {
+                current.remove();
+            }
+            if (out != null) {
+                out.flush();
+            }
+            if (err != null) {
+                err.flush();
+            }
+        }
+
+        private static PrintStream newStream(final Writer writer, final Scope scope) {
+            return new PrintStream(new BufferedOutputStream(
+                    new WriterOutputStream(writer, scope), BUFFER_SIZE),
+                    false, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * OutputStream that decodes UTF-8 bytes and writes the chars to a Writer.
+     * A multi-byte sequence split between two writes is kept until the rest
+     * arrives.
+     */
+    private static final class WriterOutputStream extends OutputStream {
+        private final Writer writer;
+        private final Scope scope;
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+        WriterOutputStream(final Writer writer, final Scope scope) {
+            this.writer = writer;
+            this.scope = scope;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] buf, int off, int len) throws IOException {
+            while (len > 0) {
+                final int n = Math.min(len, bytes.remaining());
+                bytes.put(buf, off, n);
+                off += n;
+                len -= n;
+                decode();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            final boolean writing = scope.writing;
+            scope.writing = true;
+            try {
+                writer.flush();
+            } finally {
+                scope.writing = writing;
+            }
+        }
+
+        private void decode() throws IOException {
+            bytes.flip();
+            final boolean writing = scope.writing;
+            scope.writing = true;
+            try {
+                CoderResult result;
+                do {
+                    result = decoder.decode(bytes, chars, false);
+                    writer.write(chars.array(), 0, chars.position());
+                    chars.clear();
+                } while (result.isOverflow());
+            } finally {
+                scope.writing = writing;
+            }
+            bytes.compact();
+        }
+    }
+
+    /**
+     * PrintStream that forwards every call to the stream of the eval running
+     * on the current thread, or to the original stream.
+     */
+    private static final class RoutingPrintStream extends PrintStream {
+        private final PrintStream original;
+        private final boolean error;
+
+        RoutingPrintStream(final PrintStream original, final boolean error) {
+            super(original);
+            this.original = original;
+            this.error = error;
+        }
+
+        private PrintStream target() {
+            Scope scope = current.get();
+            while (scope != null && scope.writing) {
+                scope = scope.previous;
+            }
+            return scope != null ? scope.getStream(error) : original;
+        }
+
+        @Override
+        public void flush() {
+            target().flush();
+        }
+
+        @Override
+        public void close() {
+            target().close();
+        }
+
+        @Override
+        public boolean checkError() {
+            return target().checkError();
+        }
+
+        @Override
+        public void write(final int b) {
+            target().write(b);
+        }
+
+        @Override
+        public void write(final byte[] buf, final int off, final int len) {
+            target().write(buf, off, len);
+        }
+
+        @Override
+        public void write(final byte[] buf) throws IOException {
+            target().write(buf);
+        }
+
+        @Override
+        public void writeBytes(final byte[] buf) {
+            target().writeBytes(buf);
+        }
+
+        @Override
+        public void print(final boolean b) {
+            target().print(b);
+        }
+
+        @Override
+        public void print(final char c) {
+            target().print(c);
+        }
+
+        @Override
+        public void print(final int i) {
+            target().print(i);
+        }
+
+        @Override
+        public void print(final long l) {
+            target().print(l);
+        }
+
+        @Override
+        public void print(final float f) {
+            target().print(f);
+        }
+
+        @Override
+        public void print(final double d) {
+            target().print(d);
+        }
+
+        @Override
+        public void print(final char[] s) {
+            target().print(s);
+        }
+
+        @Override
+        public void print(final String s) {
+            target().print(s);
+        }
+
+        @Override
+        public void print(final Object obj) {
+            target().print(obj);
+        }
+
+        @Override
+        public void println() {
+            target().println();
+        }
+
+        @Override
+        public void println(final boolean x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(final char x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(final int x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(final long x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(final float x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(final double x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(final char[] x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(final String x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(final Object x) {
+            target().println(x);
+        }
+
+        @Override
+        public PrintStream printf(final String format, final Object... args) {
+            target().printf(format, args);
+            return this;
+        }
+
+        @Override
+        public PrintStream printf(final Locale l, final String format, final Object... args) {
+            target().printf(l, format, args);
+            return this;
+        }
+
+        @Override
+        public PrintStream format(final String format, final Object... args) {
+            target().format(format, args);
+            return this;
+        }
+
+        @Override
+        public PrintStream format(final Locale l, final String format, final Object... args) {
+            target().format(l, format, args);
+            return this;
+        }
+
+        @Override
+        public PrintStream append(final CharSequence csq) {
+            target().append(csq);
+            return this;
+        }
+
+        @Override
+        public PrintStream append(final CharSequence csq, final int start, final int end) {
+            target().append(csq, start, end);
+            return this;
+        }
+
+        @Override
+        public PrintStream append(final char c) {
+            target().append(c);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved.
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: Redistributions of source code
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of
+ * is contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * Tenant.java
+ */
+
+package com.sun.script.java;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.script.ScriptException;
+
+/**
+ * State of one tenant of a {@link TenantEngineFactory}: its quota, its
+ * cache of compiled scripts and its counters. Engines of the tenant send
+ * their compiles through {@link #compile(Object, Callable)}.
+ */
+final class Tenant {
+    private final String name;
+    private final FairCompileScheduler scheduler;
+    private volatile TenantQuota quota;
+
+    // compiled scripts by request, least recently used first
+    private final LinkedHashMap<Object, JavaScriptEngine.CompileResult> cache =
+        new LinkedHashMap<Object, JavaScriptEngine.CompileResult>(16, 0.75f, true);
+    // guarded by cache
+    private long cachedClassBytes;
+
+    // token bucket of the compile rate, guarded by this
+    private double tokens;
+    private long refilled = System.nanoTime();
+
+    // guarded by the scheduler
+    final ArrayDeque<FairCompileScheduler.Waiter> waiters =
+        new ArrayDeque<FairCompileScheduler.Waiter>();
+    int running;
+    boolean ready;
+
+    private final AtomicLong compiles = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    final AtomicLong concurrencyLimited = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong definedClassBytes = new AtomicLong();
+
+    Tenant(final String name, final TenantQuota quota,
+           final FairCompileScheduler scheduler) {
+        this.name = name;
+        this.quota = quota;
+        this.scheduler = scheduler;
+        this.tokens = burst(quota);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    TenantQuota getQuota() {
+        return quota;
+    }
+
+    void setQuota(final TenantQuota quota) {
+        synchronized (this) {
+            this.quota = quota;
+            tokens = burst(quota);
+            refilled = System.nanoTime();
+        }
+        synchronized (cache) {
+            trim();
+        }
+    }
+
+    /**
+     * Returns the cached result of request, or null.
+     */
+    JavaScriptEngine.CompileResult getCached(final Object request) {
+        final JavaScriptEngine.CompileResult result;
+        synchronized (cache) {
+            result = cache.get(request);
+        }
+        if (result != null) {
+            cacheHits.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Runs compile within the tenant's quotas.
+     *
+     * @param cacheResult if true, the result is cached for request
+     * @throws ScriptException if the tenant is over its compile rate
+     */
+    JavaScriptEngine.CompileResult compile(final Object request,
+                    final Callable<JavaScriptEngine.CompileResult> compile,
+                    final boolean cacheResult) throws ScriptException {
+        if (! takeToken()) {
+            rateLimited.incrementAndGet();
+            throw new ScriptException("tenant " + name + " is over its quota of "
+                                      + quota.getCompilesPerSecond() + " compiles a second");
+        }
+
+        try {
+            scheduler.acquire(this);
+        } catch (final InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            throw new ScriptException(exp);
+        }
+
+        final JavaScriptEngine.CompileResult result;
+        try {
+            result = compile.call();
+        } catch (final ScriptException exp) {
+            throw exp;
+        } catch (final RuntimeException exp) {
+            throw exp;
+        } catch (final Exception exp) {
+            throw new ScriptException(exp);
+        } finally {
+            scheduler.release(this);
+        }
+
+        compiles.incrementAndGet();
+        definedClassBytes.addAndGet(result.classBytesSize);
+        if (! cacheResult) {
+            return result;
+        }
+        synchronized (cache) {
+            final JavaScriptEngine.CompileResult old = cache.put(request, result);
+            if (old != null) {
+                cachedClassBytes -= old.classBytesSize;
+            }
+            cachedClassBytes += result.classBytesSize;
+            trim();
+        }
+        return result;
+    }
+
+    TenantMetrics getMetrics() {
+        final int cachedScripts;
+        final long classBytes;
+        synchronized (cache) {
+            cachedScripts = cache.size();
+            classBytes = cachedClassBytes;
+        }
+        return new TenantMetrics(name, compiles.get(), cacheHits.get(),
+                                 rateLimited.get(), concurrencyLimited.get(),
+                                 evictions.get(), cachedScripts, classBytes,
+                                 definedClassBytes.get());
+    }
+
+    // drop least recently used scripts over the quota, caller holds cache
+    private void trim() {
+        final TenantQuota q = quota;
+        final Iterator<JavaScriptEngine.CompileResult> it = cache.values().iterator();
+        while (it.hasNext()
+               && ((q.getMaxCachedScripts() > 0 && cache.size() > q.getMaxCachedScripts())
+                   || (q.getMaxCachedClassBytes() > 0
+                       && cachedClassBytes > q.getMaxCachedClassBytes()))) {
+            cachedClassBytes -= it.next().classBytesSize;
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private synchronized boolean takeToken() {
+        final TenantQuota q = quota;
+        if (q.getCompilesPerSecond() <= 0) {
+            return true;
+        }
+        final long now = System.nanoTime();
+        final double elapsed = (double) (now - refilled) / TimeUnit.SECONDS.toNanos(1);
+        tokens = Math.min(burst(q), tokens + elapsed * q.getCompilesPerSecond());
+        refilled = now;
+        if (tokens < 1.0) {
+            return false;
+        }
+        tokens -= 1.0;
+        return true;
+    }
+
+    private static double burst(final TenantQuota quota) {
+        return Math.max(1, quota.getCompilesPerSecond());
+    }
+}
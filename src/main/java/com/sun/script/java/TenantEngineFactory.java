@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved.
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: Redistributions of source code
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of
+ * is contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * TenantEngineFactory.java
+ */
+
+package com.sun.script.java;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.script.ScriptEngine;
+
+/**
+ * Creates engines for many tenants sharing one JVM. Each tenant has its
+ * own cache of compiled scripts, so scripts of one tenant never share
+ * classes with another, and its own {@link TenantQuota} limiting its
+ * compile rate, concurrent compiles and cached classes. Compiles of all
+ * tenants share a fixed number of slots handed out in turn, so a tenant
+ * submitting many compiles doesn't hold up the others.
+ *
+ * Only scripts from compile() without a sourcepath are cached. A cached
+ * CompiledScript is one class for all of the tenant's callers, so static
+ * state, including the context set through setScriptContext, is shared
+ * between its evals. Evals and compiles with a sourcepath always compile
+ * afresh, within the tenant's quotas.
+ *
+ * Use {@link #getMetrics(String)} to see how often a tenant hits its
+ * quota.
+ */
+public final class TenantEngineFactory {
+    private final JavaScriptEngineFactory factory;
+    private final FairCompileScheduler scheduler;
+    private final ConcurrentMap<String, Tenant> tenants =
+        new ConcurrentHashMap<String, Tenant>();
+    private volatile TenantQuota defaultQuota;
+
+    /**
+     * One compile slot per processor and {@link TenantQuota#DEFAULT} for
+     * all tenants.
+     */
+    public TenantEngineFactory() {
+        this(new JavaScriptEngineFactory(), Runtime.getRuntime().availableProcessors(),
+             TenantQuota.DEFAULT);
+    }
+
+    /**
+     * @param factory creates the engines
+     * @param compileSlots compiles of all tenants running at once
+     * @param defaultQuota quota of tenants without one of their own
+     */
+    public TenantEngineFactory(final JavaScriptEngineFactory factory,
+                    final int compileSlots, final TenantQuota defaultQuota) {
+        this.factory = factory;
+        this.scheduler = new FairCompileScheduler(compileSlots);
+        this.defaultQuota = defaultQuota;
+    }
+
+    /**
+     * Returns a new engine compiling on behalf of tenant.
+     */
+    public ScriptEngine getScriptEngine(final String tenant) {
+        final JavaScriptEngine engine = (JavaScriptEngine) factory.getScriptEngine();
+        engine.setTenant(getTenant(tenant));
+        return engine;
+    }
+
+    /**
+     * Sets the quota of tenant, applied to compiles starting from now.
+     */
+    public void setQuota(final String tenant, final TenantQuota quota) {
+        getTenant(tenant).setQuota(quota);
+    }
+
+    public TenantQuota getQuota(final String tenant) {
+        return getTenant(tenant).getQuota();
+    }
+
+    /**
+     * Sets the quota of tenants seen for the first time from now on.
+     */
+    public void setDefaultQuota(final TenantQuota quota) {
+        this.defaultQuota = quota;
+    }
+
+    public TenantQuota getDefaultQuota() {
+        return defaultQuota;
+    }
+
+    /**
+     * Returns the names of the tenants used so far.
+     */
+    public List<String> getTenants() {
+        return Collections.unmodifiableList(new ArrayList<String>(tenants.keySet()));
+    }
+
+    public TenantMetrics getMetrics(final String tenant) {
+        return getTenant(tenant).getMetrics();
+    }
+
+    private Tenant getTenant(final String name) {
+        if (name == null) {
+            throw new NullPointerException("tenant");
+        }
+        Tenant tenant = tenants.get(name);
+        if (tenant == null) {
+            final Tenant created = new Tenant(name, defaultQuota, scheduler);
+            tenant = tenants.putIfAbsent(name, created);
+            if (tenant == null) {
+                tenant = created;
+            }
+        }
+        return tenant;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved.
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: Redistributions of source code
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of
+ * is contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * TenantMetrics.java
+ */
+
+package com.sun.script.java;
+
+/**
+ * Snapshot of the compile counters of one tenant of a
+ * {@link TenantEngineFactory}. Counters are totals since the tenant was
+ * first used; the cache figures are the state at the time of the snapshot.
+ */
+public final class TenantMetrics {
+    private final String tenant;
+    private final long compiles;
+    private final long cacheHits;
+    private final long rateLimited;
+    private final long concurrencyLimited;
+    private final long evictions;
+    private final int cachedScripts;
+    private final long cachedClassBytes;
+    private final long definedClassBytes;
+
+    TenantMetrics(final String tenant, final long compiles, final long cacheHits,
+                    final long rateLimited, final long concurrencyLimited,
+                    final long evictions, final int cachedScripts,
+                    final long cachedClassBytes, final long definedClassBytes) {
+        this.tenant = tenant;
+        this.compiles = compiles;
+        this.cacheHits = cacheHits;
+        this.rateLimited = rateLimited;
+        this.concurrencyLimited = concurrencyLimited;
+        this.evictions = evictions;
+        this.cachedScripts = cachedScripts;
+        this.cachedClassBytes = cachedClassBytes;
+        this.definedClassBytes = definedClassBytes;
+    }
+
+    public String getTenant() {
+        return tenant;
+    }
+
+    /**
+     * Returns the number of compiles that ran.
+     */
+    public long getCompiles() {
+        return compiles;
+    }
+
+    /**
+     * Returns the number of compiles answered from the tenant's cache.
+     */
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * Returns the number of compiles rejected by the compile rate quota.
+     */
+    public long getRateLimited() {
+        return rateLimited;
+    }
+
+    /**
+     * Returns the number of compiles that had to wait because the tenant
+     * already had its maximum number of compiles running.
+     */
+    public long getConcurrencyLimited() {
+        return concurrencyLimited;
+    }
+
+    /**
+     * Returns the number of scripts dropped from the tenant's cache to stay
+     * within its quota.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public int getCachedScripts() {
+        return cachedScripts;
+    }
+
+    /**
+     * Returns the total size of the class files of the cached scripts, an
+     * estimate of the metaspace they hold.
+     */
+    public long getCachedClassBytes() {
+        return cachedClassBytes;
+    }
+
+    /**
+     * Returns the total size of all class files the tenant's compiles
+     * defined.
+     */
+    public long getDefinedClassBytes() {
+        return definedClassBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "TenantMetrics[tenant=" + tenant
+            + ", compiles=" + compiles
+            + ", cacheHits=" + cacheHits
+            + ", rateLimited=" + rateLimited
+            + ", concurrencyLimited=" + concurrencyLimited
+            + ", evictions=" + evictions
+            + ", cachedScripts=" + cachedScripts
+            + ", cachedClassBytes=" + cachedClassBytes
+            + ", definedClassBytes=" + definedClassBytes + "]";
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved.
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: Redistributions of source code
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of
+ * is contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * TenantQuota.java
+ */
+
+package com.sun.script.java;
+
+/**
+ * Limits on the compiles of one tenant of a {@link TenantEngineFactory}.
+ * Instances are immutable; a value of 0 or less means no limit.
+ */
+public final class TenantQuota {
+    /**
+     * No limits at all.
+     */
+    public static final TenantQuota UNLIMITED = new TenantQuota(0, 0, 0, 0L);
+
+    /**
+     * Used for tenants without a quota of their own: 20 compiles a second,
+     * 2 at a time, 1000 cached scripts or 64 MB of cached class files.
+     */
+    public static final TenantQuota DEFAULT = new TenantQuota(20, 2, 1000, 64L * 1024 * 1024);
+
+    private final int compilesPerSecond;
+    private final int maxConcurrentCompiles;
+    private final int maxCachedScripts;
+    private final long maxCachedClassBytes;
+
+    /**
+     * @param compilesPerSecond sustained compile rate, up to this many
+     *        compiles may happen in a burst
+     * @param maxConcurrentCompiles compiles of the tenant running at once
+     * @param maxCachedScripts compiled scripts kept in the tenant's cache
+     * @param maxCachedClassBytes total size of the class files of the
+     *        scripts kept in the tenant's cache
+     */
+    public TenantQuota(final int compilesPerSecond, final int maxConcurrentCompiles,
+                    final int maxCachedScripts, final long maxCachedClassBytes) {
+        this.compilesPerSecond = compilesPerSecond;
+        this.maxConcurrentCompiles = maxConcurrentCompiles;
+        this.maxCachedScripts = maxCachedScripts;
+        this.maxCachedClassBytes = maxCachedClassBytes;
+    }
+
+    public int getCompilesPerSecond() {
+        return compilesPerSecond;
+    }
+
+    public int getMaxConcurrentCompiles() {
+        return maxConcurrentCompiles;
+    }
+
+    public int getMaxCachedScripts() {
+        return maxCachedScripts;
+    }
+
+    public long getMaxCachedClassBytes() {
+        return maxCachedClassBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "TenantQuota[compilesPerSecond=" + compilesPerSecond
+            + ", maxConcurrentCompiles=" + maxConcurrentCompiles
+            + ", maxCachedScripts=" + maxCachedScripts
+            + ", maxCachedClassBytes=" + maxCachedClassBytes + "]";
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved.
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: Redistributions of source code
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of
+ * is contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * CompileProfileBenchmark.java
+ */
+
+package com.sun.script.java;
+
+import javax.script.Compilable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+/**
+ * Measures compile() time of a small script with each compile profile,
+ * e.g. to compare the "production" profile with the "default" one.
+ * Run with the test classes on the class path:
+ *
+ *     java com.sun.script.java.CompileProfileBenchmark [profile...]
+ *
+ * Profiles default to "default" and "production". The first round warms
+ * up javac and the JIT and is not reported.
+ */
+public class CompileProfileBenchmark {
+    private static final int ROUNDS = 4;
+    private static final int WARM_UP_COMPILES = 50;
+    private static final int COMPILES = 200;
+
+    private static int count;
+
+    public static void main(final String[] args) throws ScriptException {
+        final String[] profiles = args.length > 0 ?
+                args : new String[] { "default", "production" };
+        final ScriptEngine engine = new JavaScriptEngineFactory().getScriptEngine();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (final String profile : profiles) {
+                engine.put("profile", profile);
+                final int compiles = round == 0 ? WARM_UP_COMPILES : COMPILES;
+                final long start = System.nanoTime();
+                for (int i = 0; i < compiles; i++) {
+                    ((Compilable) engine).compile(nextScript());
+                }
+                final long micros = (System.nanoTime() - start) / compiles / 1000;
+                if (round > 0) {
+                    System.out.println("round " + round + " " + profile + ": "
+                                       + micros + " us/compile");
+                }
+            }
+        }
+    }
+
+    // a new class each time, so nothing is shared between compiles
+    private static String nextScript() {
+        final String name = "Bench" + (count++);
+        return "import java.util.*;\n"
+            + "class " + name + " {\n"
+            + "    public static void main(String[] args) {\n"
+            + "        List<String> list = new ArrayList<String>();\n"
+            + "        for (int i = 0; i < 10; i++) {\n"
+            + "            list.add(String.valueOf(i));\n"
+            + "        }\n"
+            + "        Map<String, Integer> map = new HashMap<String, Integer>();\n"
+            + "        for (String s : list) {\n"
+            + "            map.put(s, s.length());\n"
+            + "        }\n"
+            + "        System.out.println(map);\n"
+            + "    }\n"
+            + "}\n";
+    }
+}
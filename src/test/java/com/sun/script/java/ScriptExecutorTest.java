@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved.
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: Redistributions of source code
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of
+ * is contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * ScriptExecutorTest.java
+ */
+
+package com.sun.script.java;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.ScriptException;
+
+import org.junit.Test;
+
+public class ScriptExecutorTest {
+    private static final int SLOTS = 4;
+
+    // evals cancelled on timeout before their task started must give back
+    // their slot, or the executor runs out of slots for good
+    @Test
+    public void timeoutBeforeStartReleasesSlot() throws Exception {
+        final ScriptExecutor executor = new ScriptExecutor(SLOTS);
+        try {
+            final ExecutorService callers = Executors.newFixedThreadPool(16);
+            final List<Future<?>> calls = new ArrayList<Future<?>>();
+            for (int i = 0; i < 16; i++) {
+                calls.add(callers.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        for (int j = 0; j < 1000; j++) {
+                            try {
+                                executor.execute(new Callable<Object>() {
+                                    @Override
+                                    public Object call() {
+                                        return null;
+                                    }
+                                }, 1);
+                            } catch (final ScriptException exp) {
+                                // timed out, expected now and then
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<?> call : calls) {
+                call.get();
+            }
+            callers.shutdown();
+
+            assertEquals(SLOTS, runTogether(executor, SLOTS));
+        } finally {
+            executor.close();
+        }
+    }
+
+    // number of evals that were running at the same time, out of count
+    private static int runTogether(final ScriptExecutor executor, final int count)
+                    throws Exception {
+        final CountDownLatch running = new CountDownLatch(count);
+        final ExecutorService callers = Executors.newFixedThreadPool(count);
+        final List<Future<Object>> calls = new ArrayList<Future<Object>>();
+        for (int i = 0; i < count; i++) {
+            calls.add(callers.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return executor.execute(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            running.countDown();
+                            return running.await(10, TimeUnit.SECONDS);
+                        }
+                    }, 20000);
+                }
+            }));
+        }
+        int together = 0;
+        for (final Future<Object> call : calls) {
+            if (Boolean.TRUE.equals(call.get())) {
+                together++;
+            }
+        }
+        callers.shutdown();
+        return together;
+    }
+}